@@ -0,0 +1,234 @@
+package hudson.plugins.batch_task;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.VirtualFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies the archived artifacts of a build into a directory on the node that runs a task.
+ *
+ * <p>
+ * Artifacts go through a content-addressed cache on the node (files named by their SHA-256),
+ * so a file only travels over the channel the first time the node sees that content.
+ * Repeated runs against the same build, or against builds whose artifacts didn't change,
+ * then only do local copies. Cache entries not used for {@link #CACHE_MAX_AGE_DAYS} days are removed.
+ *
+ * <p>
+ * The hashes of the artifacts of a build are computed the first time they are staged,
+ * and kept in {@link #DIGESTS} in the build directory for later runs against the same build.
+ */
+final class ArtifactStager {
+    private ArtifactStager() {}
+
+    /**
+     * Stages the artifacts of the build into {@code dir}, using {@code cache} on the same node.
+     */
+    static void stage(Run<?, ?> build, FilePath dir, FilePath cache) throws IOException, InterruptedException {
+        VirtualFile root = build.getArtifactManager().root();
+        LinkedHashMap<String, String> files = digests(build, root);
+
+        cache.mkdirs();
+        Set<String> missing = cache.act(new FindMissing(new HashSet<String>(files.values())));
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            if (!missing.remove(e.getValue())) continue;
+            FilePath tmp = cache.createTempFile(e.getValue(), ".tmp");
+            try (InputStream in = root.child(e.getKey()).open()) {
+                tmp.copyFrom(in);
+                tmp.act(new MoveTo(e.getValue()));
+            } catch (IOException | InterruptedException x) {
+                tmp.delete();
+                throw x;
+            }
+        }
+
+        dir.act(new CopyFromCache(cache.getRemote(), files, TimeUnit.DAYS.toMillis(CACHE_MAX_AGE_DAYS)));
+    }
+
+    /**
+     * Gets the content hashes of the artifacts of the build by relative path, from {@link #DIGESTS} if it's there.
+     * It's computed again if the artifacts aren't the ones it lists anymore, as when old artifacts get discarded.
+     * It's only written once the build is done, since until then artifacts may be archived again with other contents.
+     */
+    private static LinkedHashMap<String, String> digests(Run<?, ?> build, VirtualFile root) throws IOException {
+        Collection<String> paths = root.list("**", null, false);
+        File file = new File(build.getRootDir(), DIGESTS);
+        LinkedHashMap<String, String> files = load(file);
+        if (files != null && files.keySet().equals(new HashSet<String>(paths)))
+            return files;
+
+        files = new LinkedHashMap<String, String>();
+        for (String path : paths)
+            files.put(path, digest(root.child(path)));
+        if (!build.isBuilding())
+            save(file, files);
+        return files;
+    }
+
+    /**
+     * Reads hashes written by {@link #save}, or returns null if there are none or they are unreadable.
+     */
+    private static LinkedHashMap<String, String> load(File file) {
+        if (!file.isFile()) return null;
+        try {
+            LinkedHashMap<String, String> files = new LinkedHashMap<String, String>();
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                int idx = line.indexOf(' ');
+                if (idx < 0) return null;
+                files.put(line.substring(idx + 1), line.substring(0, idx));
+            }
+            return files;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the hashes one per line, in the format of sha256sum without the second space.
+     * Runs staging the same build at the same time may both write it, so the file is replaced atomically.
+     */
+    private static void save(File file, LinkedHashMap<String, String> files) {
+        List<String> lines = new ArrayList<String>(files.size());
+        for (Map.Entry<String, String> e : files.entrySet())
+            lines.add(e.getValue() + ' ' + e.getKey());
+        try {
+            File tmp = File.createTempFile(DIGESTS, ".tmp", file.getParentFile());
+            Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // computed again next time
+            LOGGER.log(Level.WARNING, "Failed to write " + file, e);
+        }
+    }
+
+    private static String digest(VirtualFile f) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // every JVM has SHA-256
+        }
+        try (InputStream in = new DigestInputStream(f.open(), md)) {
+            byte[] buf = new byte[8192];
+            while (in.read(buf) >= 0)
+                ;
+        }
+        return Util.toHexString(md.digest());
+    }
+
+    /**
+     * Returns the hashes that aren't in the cache yet, and marks the others as recently used,
+     * so that a staging going on at the same time doesn't prune them before they are copied.
+     */
+    private static final class FindMissing extends MasterToSlaveFileCallable<Set<String>> {
+        private final HashSet<String> hashes;
+
+        FindMissing(HashSet<String> hashes) {
+            this.hashes = hashes;
+        }
+
+        public Set<String> invoke(File cache, VirtualChannel channel) {
+            HashSet<String> missing = new HashSet<String>();
+            long now = System.currentTimeMillis();
+            for (String h : hashes)
+                if (!new File(cache, h).setLastModified(now))
+                    missing.add(h); // doesn't exist
+            return missing;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Moves a freshly transferred file to its final name in the cache.
+     * Another run may have put the same content there meanwhile, which is fine.
+     */
+    private static final class MoveTo extends MasterToSlaveFileCallable<Void> {
+        private final String name;
+
+        MoveTo(String name) {
+            this.name = name;
+        }
+
+        public Void invoke(File tmp, VirtualChannel channel) throws IOException {
+            Files.move(tmp.toPath(), new File(tmp.getParentFile(), name).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Copies cached files into place, marks them as recently used, and prunes stale cache entries.
+     */
+    private static final class CopyFromCache extends MasterToSlaveFileCallable<Void> {
+        private final String cache;
+        private final LinkedHashMap<String, String> files;
+        private final long maxAge;
+
+        CopyFromCache(String cache, LinkedHashMap<String, String> files, long maxAge) {
+            this.cache = cache;
+            this.files = files;
+            this.maxAge = maxAge;
+        }
+
+        public Void invoke(File dir, VirtualChannel channel) throws IOException {
+            File cacheDir = new File(cache);
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, String> e : files.entrySet()) {
+                File src = new File(cacheDir, e.getValue());
+                File dst = new File(dir, e.getKey());
+                Files.createDirectories(dst.getParentFile().toPath());
+                Files.copy(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                src.setLastModified(now);
+            }
+
+            File[] entries = cacheDir.listFiles();
+            if (entries != null) {
+                long cutoff = now - maxAge;
+                for (File f : entries)
+                    if (f.lastModified() < cutoff)
+                        f.delete();
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Days after which an unused cache entry is deleted.
+     */
+    static int CACHE_MAX_AGE_DAYS = Integer.getInteger(ArtifactStager.class.getName() + ".cacheMaxAgeDays", 7);
+
+    /**
+     * Name of the file in the build directory that keeps the hashes of its artifacts.
+     */
+    static final String DIGESTS = "batch-task-artifacts.sha256";
+
+    private static final Logger LOGGER = Logger.getLogger(ArtifactStager.class.getName());
+}
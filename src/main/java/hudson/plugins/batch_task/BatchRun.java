@@ -5,26 +5,38 @@ import hudson.*;
 import hudson.model.*;
 import hudson.model.Queue.Executable;
 import hudson.slaves.WorkspaceList.Lease;
-import hudson.tasks.BatchFile;
 import hudson.tasks.CommandInterpreter;
-import hudson.tasks.Shell;
 import hudson.util.Iterators;
 
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.jenkinsci.lib.envinject.EnvInjectException;
 import org.jenkinsci.lib.envinject.service.EnvVarsResolver;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 import org.kohsuke.stapler.framework.io.LargeText;
 import org.kohsuke.stapler.verb.POST;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
-import java.util.Objects;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,13 +45,24 @@ import java.util.logging.Logger;
  *
  * @author Kohsuke Kawaguchi
  */
+@ExportedBean
 public final class BatchRun extends Actionable implements Executable, Comparable<BatchRun> {
     /**
      * Build result.
      * If null, we are still building.
      */
     protected Result result;
-    public final Calendar timestamp;
+
+    /**
+     * When this run started, in milli-seconds since the epoch.
+     */
+    private long startTime;
+
+    /**
+     * Start time as recorded by older versions, converted to {@link #startTime} when loaded.
+     */
+    @Deprecated
+    private Calendar timestamp;
 
     protected transient BatchRunAction parent;
 
@@ -49,7 +72,9 @@ public final class BatchRun extends Actionable implements Executable, Comparable
     public final int id;
 
     /**
-     * Pointer that connects us back to {@link BatchTask}
+     * Pointer that connects us back to {@link BatchTask}.
+     * Interned, as every record of the task carries it. When records are loaded,
+     * XStream already shares the instances of short strings such as this one.
      *
      * @see #getParent()
      */
@@ -60,13 +85,89 @@ public final class BatchRun extends Actionable implements Executable, Comparable
      */
     protected long duration;
 
-    protected BatchRun(Calendar timestamp, BatchRunAction parent, int id, BatchTask task) {
-        this.timestamp = timestamp;
+    /**
+     * Sections the script marked out in its output, in the order they started.
+     * Null if the script didn't use any section marker.
+     *
+     * @see SectionMarkerStream
+     */
+    private List<Section> sections;
+
+    /**
+     * Attempts made to run the script, in order, if the task has a {@link RetryPolicy}.
+     * Null otherwise.
+     */
+    private List<Attempt> attempts;
+
+    /**
+     * True if this run was aborted because it exceeded {@link BatchTask#getTimeout()}.
+     */
+    private boolean timedOut;
+
+    /**
+     * True while the script (or the wait for the workspace) is in progress,
+     * which is when the timeout is allowed to interrupt the executor.
+     */
+    private transient volatile boolean performing;
+
+    /**
+     * Name of the node the run executed on, "" for the built-in node.
+     * Null for runs recorded before this was kept.
+     */
+    private String node;
+
+    /**
+     * Milli-seconds the run waited in the queue for an executor, not counting the quiet period.
+     */
+    private long queueWait;
+
+    /**
+     * Key of the inputs of a run of a cached task. Null if the task isn't cached.
+     *
+     * @see TaskCache
+     */
+    private String cacheKey;
+
+    /**
+     * {@linkplain #getNumber() Number} of the earlier run whose outcome this run reused,
+     * because it had the same inputs. Null if the script did run.
+     */
+    private String cachedFrom;
+
+    /**
+     * Script of a durable run while it is going on. Null otherwise.
+     *
+     * @see BatchTask#isDurable()
+     */
+    private DurableExecution durable;
+
+    /**
+     * True if Jenkins went down while the durable script of this run was going on,
+     * which is then left running to be resumed after the restart.
+     */
+    private transient boolean detached;
+
+    protected BatchRun(long startTime, BatchRunAction parent, int id, BatchTask task) {
+        this.startTime = startTime;
         this.parent = parent;
         this.id = id;
-        this.taskName = task.name;
+        this.taskName = task.name.intern();
     }
 
+    /**
+     * Migrates records saved by older versions, and shares the strings that many records have in common.
+     */
+    private Object readResolve() {
+        if (timestamp != null) {
+            startTime = timestamp.getTimeInMillis();
+            timestamp = null;
+        }
+        if (node != null)
+            node = node.intern();
+        return this;
+    }
+
+    @Exported(visibility=2)
     public Result getResult() {
         return result;
     }
@@ -74,17 +175,93 @@ public final class BatchRun extends Actionable implements Executable, Comparable
     /**
      * Is this task still running?
      */
+    @Exported(visibility=2,name="building")
     public boolean isRunning() {
         return result == null;
     }
 
+    /**
+     * Is the script of this run launched detached on the node, and still going on?
+     */
+    public boolean isDurable() {
+        return durable != null;
+    }
+
+    /**
+     * Gets the name of the node this run executed on, "" for the built-in node,
+     * or null if it wasn't recorded.
+     */
+    @Exported
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Gets the milli-seconds this run waited in the queue for an executor, not counting the quiet period.
+     */
+    @Exported
+    public long getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Gets the key of the inputs of this run, or null if the task isn't cached.
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * Did this run reuse the outcome of an earlier run with the same inputs instead of running the script?
+     */
+    @Exported
+    public boolean isCacheHit() {
+        return cachedFrom != null;
+    }
+
+    /**
+     * Gets the earlier run whose outcome this run reused, or null if there's none or it's gone.
+     */
+    public BatchRun getCachedFrom() {
+        if (cachedFrom == null) return null;
+        int dash = cachedFrom.indexOf('-');
+        Run<?, ?> b = parent.owner.getParent().getBuildByNumber(Integer.parseInt(cachedFrom.substring(0, dash)));
+        BatchRunAction a = b != null ? b.getAction(BatchRunAction.class) : null;
+        return a != null ? a.getRecord(Integer.parseInt(cachedFrom.substring(dash + 1))) : null;
+    }
+
+    /**
+     * Was this run aborted because it took longer than the timeout of the task?
+     */
+    @Exported
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Gets the time this run started, in milli-seconds since the epoch.
+     */
+    @Exported(visibility=2,name="timestamp")
+    public long getTimeInMillis() {
+        return startTime;
+    }
+
+    /**
+     * Gets the time this run started.
+     */
+    public Calendar getTimestamp() {
+        Calendar c = new GregorianCalendar();
+        c.setTimeInMillis(startTime);
+        return c;
+    }
+
     /**
      * Gets the string that says how long since this run has started.
      *
      * @return string like "3 minutes" "1 day" etc.
      */
     public String getTimestampString() {
-        long time = new GregorianCalendar().getTimeInMillis() - timestamp.getTimeInMillis();
+        long time = System.currentTimeMillis() - startTime;
         return Util.getTimeSpanString(time);
     }
 
@@ -95,9 +272,49 @@ public final class BatchRun extends Actionable implements Executable, Comparable
         return new File(parent.owner.getRootDir(), "task-" + id + ".log");
     }
 
+    /**
+     * Gets the parameter values this run was started with.
+     */
+    public List<ParameterValue> getParameterValues() {
+        ParametersAction pa = getAction(ParametersAction.class);
+        if (pa == null) return Collections.emptyList();
+        return pa.getParameters();
+    }
+
+    /**
+     * Gets the directory that keeps the files this run declared as its outputs.
+     */
+    public File getOutputsDir() {
+        return new File(parent.owner.getRootDir(), "task-" + id + "-outputs");
+    }
+
+    /**
+     * Did this run leave any output files behind?
+     */
+    public boolean getHasOutputs() {
+        return getOutputsDir().isDirectory();
+    }
+
+    /**
+     * Can the current user see the output files of this run?
+     * They take the permission to see the artifacts of the build.
+     */
+    public boolean getShowOutputs() {
+        return getHasOutputs() && parent.owner.hasPermission(Run.ARTIFACTS);
+    }
+
+    /**
+     * Serves the output files of this run.
+     */
+    public DirectoryBrowserSupport doOutputs() {
+        parent.owner.checkPermission(Run.ARTIFACTS);
+        return new DirectoryBrowserSupport(this, new FilePath(getOutputsDir()),
+                Messages.BatchRun_OutputsTitle(getDisplayName()), "package.png", true);
+    }
+
     @NonNull
     public BatchTask getParent() {
-        BatchTaskAction jta = parent.owner.getProject().getAction(BatchTaskAction.class);
+        BatchTaskAction jta = parent.owner.getParent().getAction(BatchTaskAction.class);
         return jta.getTask(taskName);
     }
 
@@ -135,15 +352,19 @@ public final class BatchRun extends Actionable implements Executable, Comparable
 
     /**
      * Obtains the previous execution record, or null if no such record is available.
+     *
+     * <p>
+     * Records are ordered like their {@linkplain #getNumber() numbers}, by build and then by id,
+     * so that a task run against an older build stays next to the other runs of that build.
      */
     public BatchRun getPrevious() {
         // check siblings
-        for (AbstractBuild<?, ?> b = parent.owner; b != null; b = b.getPreviousBuild()) {
+        for (Run<?, ?> b = parent.owner; b != null; b = b.getPreviousBuild()) {
             BatchRunAction records = b.getAction(BatchRunAction.class);
             if (records == null) continue;
             for (BatchRun r : records.records) {
                 if (r.taskName.equals(taskName)
-                        && r.timestamp.compareTo(this.timestamp) < 0) // must be older than this
+                        && (b != parent.owner || r.id < this.id)) // must be before this
                     return r;
             }
         }
@@ -155,12 +376,12 @@ public final class BatchRun extends Actionable implements Executable, Comparable
      */
     public BatchRun getNext() {
         // check siblings
-        for (AbstractBuild<?, ?> b = parent.owner; b != null; b = b.getNextBuild()) {
+        for (Run<?, ?> b = parent.owner; b != null; b = b.getNextBuild()) {
             BatchRunAction records = b.getAction(BatchRunAction.class);
             if (records == null) continue;
             for (BatchRun r : Iterators.reverse(records.records)) {
                 if (r.taskName.equals(taskName)
-                        && r.timestamp.compareTo(this.timestamp) > 0) // must be newer than this
+                        && (b != parent.owner || r.id > this.id)) // must be after this
                     return r;
             }
         }
@@ -180,10 +401,29 @@ public final class BatchRun extends Actionable implements Executable, Comparable
         return getUrl();
     }
 
+    @Exported(visibility=2,name="url")
+    public String getAbsoluteUrl() {
+        return Jenkins.get().getRootUrl() + getUrl() + '/';
+    }
+
+    /**
+     * Remote API access.
+     *
+     * <p>
+     * A completed run never changes, so its revision is fixed.
+     * A running one follows its task, which changes when the run completes.
+     */
+    public Api getApi() {
+        BatchTask task = isRunning() ? getParent() : null;
+        return new ConditionalApi(this, task != null ? task.getParent().getIndex().getRevision() : 0);
+    }
+
+    @Exported
     public String getDisplayName() {
         return taskName + ' ' + getBuildNumber();
     }
 
+    @Exported(visibility=2)
     public String getNumber() {
         return parent.owner.getNumber() + "-" + id;
     }
@@ -197,7 +437,7 @@ public final class BatchRun extends Actionable implements Executable, Comparable
      */
     public String getDurationString() {
         if (isRunning())
-            return Util.getTimeSpanString(System.currentTimeMillis() - timestamp.getTimeInMillis()) + " and counting";
+            return Util.getTimeSpanString(System.currentTimeMillis() - startTime) + " and counting";
         return Util.getTimeSpanString(duration);
     }
 
@@ -209,35 +449,99 @@ public final class BatchRun extends Actionable implements Executable, Comparable
         return duration;
     }
 
+    /**
+     * Gets the sections recorded so far, in the order they started.
+     */
+    public synchronized List<Section> getSections() {
+        if (sections == null) return Collections.emptyList();
+        return new ArrayList<Section>(sections);
+    }
+
+    /**
+     * Gets the duration of the longest section, for scaling the timeline.
+     */
+    public synchronized long getLongestSectionDuration() {
+        long max = 0;
+        if (sections != null)
+            for (Section s : sections)
+                max = Math.max(max, s.getDuration());
+        return max;
+    }
+
+    /**
+     * Gets the attempts made to run the script, if the task has a {@link RetryPolicy}.
+     */
+    public synchronized List<Attempt> getAttempts() {
+        if (attempts == null) return Collections.emptyList();
+        return new ArrayList<Attempt>(attempts);
+    }
+
+    /*package*/ synchronized Section startSection(String name, long now) {
+        Section s = new Section(name, now - startTime);
+        if (sections == null) sections = new ArrayList<Section>();
+        sections.add(s);
+        return s;
+    }
+
+    /*package*/ synchronized void endSection(Section s, long now) {
+        s.duration = now - startTime - s.start;
+    }
+
+    private synchronized Attempt startAttempt(long now) {
+        Attempt a = new Attempt(now - startTime);
+        if (attempts == null) attempts = new ArrayList<Attempt>();
+        attempts.add(a);
+        return a;
+    }
+
+    private synchronized void endAttempt(Attempt a, Integer exitCode, long now) {
+        a.duration = now - startTime - a.start;
+        a.exitCode = exitCode;
+    }
+
     public void run() {
         StreamBuildListener listener = null;
+        SectionMarkerStream markers = null;
+        BatchRunListener.fireStarted(this);
         try {
             long start = System.currentTimeMillis();
-            listener = new StreamBuildListener(new FileOutputStream(getLogFile()));
+            BatchTask task = getParent();
+            OutputStream log = new FileOutputStream(getLogFile());
+            if (task != null && task.getLogSizeLimit() > 0)
+                log = new TruncatingOutputStream(log, task.getLogSizeLimit() * 1024L);
+            markers = new SectionMarkerStream(log, this);
+            listener = new StreamBuildListener(markers);
             Executor executor = Executor.currentExecutor();
             if (executor == null)
                 throw new AbortException("ERROR: no executor");
             Node node = executor.getOwner().getNode();
             if (node == null)
                 throw new AbortException("ERROR: no node present");
+            this.node = node.getNodeName();
+            this.queueWait = executor.getTimeSpentInQueue();
 
             Launcher launcher = node.createLauncher(listener);
 
-            BatchTask task = getParent();
             if (task == null)
                 throw new AbortException("ERROR: undefined task \"" + taskName + "\"");
-            AbstractBuild<?, ?> lb = task.owner.getLastBuild();
-            if (lb == null)
-                throw new AbortException("ERROR: task \"" + taskName + "\" doesn't have a last build");
-            FilePath ws = lb.getWorkspace();
-            if (ws == null)
-                throw new AbortException(lb.getFullDisplayName() + " doesn't have a workspace.");
+            // the build we were created for, normally the last build
+            Run<?, ?> lb = parent.owner;
+            BuildWorkspace bw = task.isUseArtifacts() ? null : BuildWorkspace.of(lb);
+            FilePath ws = bw != null && bw.nodeName.equals(node.getNodeName()) ? bw.getWorkspace() : null;
+            if (ws != null && !isWorkspaceOf(lb, ws))
+                ws = null;
+            if (ws == null && !lb.getHasArtifacts())
+                throw new AbortException(lb.getFullDisplayName() + " doesn't have a workspace nor archived artifacts.");
 
+            // marks the processes of this run, so that they can be found and killed on timeout
+            final Map<String, String> cookie = Collections.singletonMap(COOKIE, UUID.randomUUID().toString());
+            ScheduledFuture<?> watchdog = null;
             try {
+                if (task.getTimeout() > 0)
+                    watchdog = startWatchdog(executor, launcher, cookie, task.getTimeout());
 
                 EnvVarsResolver envVarsResolver = new EnvVarsResolver();
-                final ArrayList<Environment> buildEnvironments = new ArrayList<Environment>();
-                buildEnvironments.add(Environment.create(new EnvVars(envVarsResolver.getEnVars(lb))));
+                final EnvVars injected = new EnvVars(envVarsResolver.getEnVars(lb));
 
 
                 // This is the only way I found to inject things into the environment of
@@ -245,11 +549,15 @@ public final class BatchRun extends Actionable implements Executable, Comparable
                 // (if BatchTask/BatchRun are converted to extend AbstractProject/AbstractBuild,
                 //  BatchRun will use AbstractRunner and get global/node properties w/o extra code)
                 EnvironmentContributingAction envAct = new EnvironmentContributingAction() {
-                    public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+                    public void buildEnvironment(@NonNull Run<?, ?> build, @NonNull EnvVars env) {
                         // Apply global and node properties
-                        for (Environment e : buildEnvironments) e.buildEnvVars(env);
+                        env.putAll(injected);
+                        // Parameters of this run
+                        for (ParameterValue v : getParameterValues())
+                            v.buildEnvironment(build, env);
                         // Our task id
                         env.put("TASK_ID", getNumber());
+                        env.putAll(cookie);
                         // User who triggered this task run, if applicable
                         out:
                         for (CauseAction ca : getActions(CauseAction.class))
@@ -273,39 +581,86 @@ public final class BatchRun extends Actionable implements Executable, Comparable
                     }
                 };
 
-                CommandInterpreter batchRunner;
-
-                if (launcher.isUnix())
-                    batchRunner = new Shell(task.script);
-                else
-                    batchRunner = new BatchFile(task.script);
+                CommandInterpreter batchRunner = task.getInterpreter().create(task.script, launcher.isUnix());
                 Lease wsLease = null;
+                FilePath scratch = null;
+                performing = true;
                 try {
-                    // Lock the workspace
-                    Node builtOn = lb.getBuiltOn();
-                    if (builtOn == null)
-                        throw new AbortException("ERROR: no node for last build");
-                    Computer computer = builtOn.toComputer();
-                    if (computer == null)
-                        throw new AbortException("ERROR: no computer");
-
-                    wsLease = computer.getWorkspaceList().acquire(ws,
-                            !task.owner.isConcurrentBuild());
+                    FilePath dir;
+                    if (ws != null) {
+                        // Lock the workspace
+                        Computer computer = node.toComputer();
+                        if (computer == null)
+                            throw new AbortException("ERROR: no computer");
+
+                        wsLease = computer.getWorkspaceList().acquire(ws,
+                                !(task.owner instanceof Queue.Task && ((Queue.Task) task.owner).isConcurrentBuild()));
+                        dir = wsLease.path;
+                    } else {
+                        // asked not to touch the workspace, or it's gone or has moved on to a later build.
+                        // use the artifacts
+                        FilePath root = node.getRootPath();
+                        if (root == null)
+                            throw new AbortException("ERROR: " + node.getDisplayName() + " is offline");
+                        scratch = createScratchDir(root);
+                        if (task.isUseArtifacts())
+                            listener.getLogger().println(Messages.BatchRun_StagingArtifacts(lb.getFullDisplayName(), scratch));
+                        else
+                            listener.getLogger().println(Messages.BatchRun_RestoringArtifacts(lb.getFullDisplayName(), scratch));
+                        ArtifactStager.stage(lb, scratch, root.child("batch-task-cache"));
+                        dir = scratch;
+                    }
                     // Add environment to build so it will apply when task runs
                     lb.getActions().add(envAct);
-                    // Run the task
-                    result = batchRunner.perform(lb, launcher, listener) ? Result.SUCCESS : Result.FAILURE;
+                    // Run the task, unless an earlier run had the same inputs
+                    BatchRun hit = null;
+                    if (task.isCache()) {
+                        cacheKey = TaskCache.key(task, buildEnvironment(lb, dir, listener), dir);
+                        hit = task.getParent().getIndex().getCachedRun(task.name, cacheKey);
+                    }
+                    boolean ok;
+                    if (hit != null) {
+                        reuse(hit, listener);
+                        ok = true;
+                    } else if (task.isDurable()) {
+                        EnvVars env = buildEnvironment(lb, dir, listener);
+                        // the script is given its environment directly, and the build is saved below,
+                        // which must not record the temporary action
+                        lb.getActions().remove(envAct);
+                        durable = DurableExecution.launch(task.getInterpreter().createDurable(task.script, launcher.isUnix()),
+                                env, node, dir, scratch != null, launcher, listener);
+                        parent.owner.save();
+                        InFlightRuns.add(this);
+                        // the watchdog takes care of the timeout
+                        ok = awaitDurable(markers, listener, 0) == 0;
+                    } else {
+                        ok = performWithRetries(task.getRetry(), batchRunner, lb, dir, launcher, listener);
+                    }
+                    result = ok ? Result.SUCCESS : Result.FAILURE;
+                    if (hit == null && task.getOutputs() != null)
+                        collectOutputs(dir, task.getOutputs(), listener);
                 } finally {
+                    performing = false;
                     if (wsLease != null) wsLease.release();
+                    if (scratch != null && !detached) scratch.deleteRecursive();
                     lb.getActions().remove(envAct);
-                    for (Environment e : buildEnvironments) e.tearDown(lb, listener);
                 }
             } catch (InterruptedException e) {
-                listener.getLogger().println("ABORTED");
-                result = Result.ABORTED;
+                if (detached)
+                    listener.getLogger().println(Messages.BatchRun_Detached());
+                else if (timedOut)
+                    listener.getLogger().println(Messages.BatchRun_TimedOut(task.getTimeout()));
+                else
+                    listener.getLogger().println("ABORTED");
+                if (!detached)
+                    result = Result.ABORTED;
             } catch (EnvInjectException e) {
                 e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+            } finally {
+                if (watchdog != null) watchdog.cancel(false);
             }
+            listener.getLogger().flush();
+            markers.finish();
             duration = System.currentTimeMillis() - start;
 
             // save the build result
@@ -319,9 +674,376 @@ public final class BatchRun extends Actionable implements Executable, Comparable
         } finally {
             if (listener != null)
                 listener.getLogger().close();
-            if (result == null)
-                result = Result.FAILURE;
+            if (!detached) {
+                if (result == null)
+                    result = Result.FAILURE;
+                BatchRunListener.fireCompleted(this);
+            }
+        }
+    }
+
+    /**
+     * Waits for the durable script to finish, copying its output into the log.
+     *
+     * @param deadline
+     *      Time at which the script gets killed for taking too long, or 0 for none.
+     * @return the exit status of the script.
+     */
+    private int awaitDurable(OutputStream log, TaskListener listener, long deadline) throws IOException, InterruptedException {
+        try {
+            listener.getLogger().flush();
+            int status = durable.await(log, listener, deadline);
+            if (deadline > 0 && System.currentTimeMillis() >= deadline)
+                timedOut = true;
+            return status;
+        } catch (InterruptedException e) {
+            detached = Jenkins.get().isTerminating();
+            throw e;
+        } finally {
+            if (!detached) {
+                InFlightRuns.remove(this);
+                durable = null;
+            }
+        }
+    }
+
+    /**
+     * Goes back to collecting the output of the durable script of this run after a restart,
+     * and completes the run once the script is done.
+     *
+     * <p>
+     * This happens outside of any executor, so the run can no longer be aborted from the UI,
+     * but the timeout of the task still applies.
+     *
+     * @see InFlightRuns#resumeAll()
+     */
+    /*package*/ void resume() {
+        StreamBuildListener listener = null;
+        BatchRunListener.fireStarted(this);
+        try {
+            BatchTask task = getParent();
+            OutputStream log = new FileOutputStream(getLogFile(), true);
+            if (task != null && task.getLogSizeLimit() > 0)
+                log = new TruncatingOutputStream(log, Math.max(0, task.getLogSizeLimit() * 1024L - getLogFile().length()));
+            SectionMarkerStream markers = new SectionMarkerStream(log, this);
+            listener = new StreamBuildListener(markers);
+            listener.getLogger().println(Messages.BatchRun_Resuming());
+
+            DurableExecution d = durable;
+            long deadline = task != null && task.getTimeout() > 0
+                    ? startTime + TimeUnit.MINUTES.toMillis(task.getTimeout()) : 0;
+            try {
+                int status = awaitDurable(markers, listener, deadline);
+                if (timedOut) {
+                    listener.getLogger().println(Messages.BatchRun_TimedOut(task.getTimeout()));
+                    result = Result.ABORTED;
+                } else {
+                    result = status == 0 ? Result.SUCCESS : Result.FAILURE;
+                }
+                FilePath dir = d.getDir();
+                if (dir != null) {
+                    if (task != null && task.getOutputs() != null)
+                        collectOutputs(dir, task.getOutputs(), listener);
+                    if (d.isScratch())
+                        dir.deleteRecursive();
+                }
+            } catch (InterruptedException e) {
+                if (detached) {
+                    listener.getLogger().println(Messages.BatchRun_Detached());
+                } else {
+                    listener.getLogger().println("ABORTED");
+                    result = Result.ABORTED;
+                }
+            }
+            listener.getLogger().flush();
+            markers.finish();
+            if (!detached)
+                duration = System.currentTimeMillis() - startTime;
+            parent.owner.save();
+        } catch (IOException e) {
+            result = Result.FAILURE;
+            LOGGER.log(Level.SEVERE, "Failed to resume " + this, e);
+        } finally {
+            if (listener != null)
+                listener.getLogger().close();
+            if (!detached) {
+                if (result == null)
+                    result = Result.FAILURE;
+                BatchRunListener.fireCompleted(this);
+            }
+        }
+    }
+
+    /**
+     * Runs the script, trying again as the retry policy says if it fails.
+     *
+     * @param retry
+     *      Null to make just one attempt.
+     * @return true if an attempt succeeded.
+     */
+    private boolean performWithRetries(RetryPolicy retry, CommandInterpreter interpreter, Run<?, ?> build, FilePath dir,
+                                       Launcher launcher, TaskListener listener) throws InterruptedException {
+        if (retry == null) {
+            try {
+                return perform(interpreter, build, dir, launcher, listener, listener.getLogger()) == 0;
+            } catch (IOException e) {
+                return false; // already reported
+            }
+        }
+
+        int max = retry.getMaxAttempts();
+        for (int n = 1; ; n++) {
+            listener.getLogger().println(Messages.BatchRun_Attempt(n, max));
+            Attempt a = startAttempt(System.currentTimeMillis());
+            RetryPolicy.Tail tail = new RetryPolicy.Tail();
+            Integer exitCode;
+            try {
+                exitCode = perform(interpreter, build, dir, launcher, listener,
+                        new TeeOutputStream(listener.getLogger(), tail));
+            } catch (IOException e) {
+                exitCode = null; // already reported
+            }
+            endAttempt(a, exitCode, System.currentTimeMillis());
+            if (exitCode != null && exitCode == 0)
+                return true;
+            if (n >= max || !retry.shouldRetry(exitCode, tail.toString()))
+                return false;
+            long delay = retry.getDelay(n);
+            listener.getLogger().println(Messages.BatchRun_Retrying(Util.getTimeSpanString(delay)));
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Runs the script in the given directory.
+     *
+     * <p>
+     * In the workspace of a freestyle-type build, this is
+     * {@link CommandInterpreter#perform(AbstractBuild, Launcher, TaskListener)}, the way the build steps ran.
+     * Anywhere else, the script runs with {@linkplain #buildEnvironment the environment of the build},
+     * which lacks the build variables of a freestyle-type build, and without the environment filters
+     * the launcher would have been prepared with.
+     *
+     * @param out
+     *      Where the output of the script goes.
+     * @return the exit code of the script.
+     * @throws IOException
+     *      if the script couldn't be written or launched, or the connection to the node broke.
+     *      This is reported to the listener already.
+     */
+    private int perform(CommandInterpreter interpreter, Run<?, ?> build, FilePath dir, Launcher launcher,
+                        TaskListener listener, OutputStream out) throws IOException, InterruptedException {
+        if (build instanceof AbstractBuild && dir.equals(((AbstractBuild<?, ?>) build).getWorkspace()))
+            return performInWorkspace(interpreter, (AbstractBuild<?, ?>) build, launcher, listener, out);
+
+        FilePath script = null;
+        try {
+            try {
+                script = interpreter.createScriptFile(dir);
+            } catch (IOException e) {
+                Util.displayIOException(e, listener);
+                Functions.printStackTrace(e, listener.fatalError("Unable to produce a script file"));
+                throw e;
+            }
+
+            try {
+                EnvVars env = buildEnvironment(build, dir, listener);
+                return launcher.launch().cmds(interpreter.buildCommandLine(script)).envs(env)
+                        .stdout(out).pwd(dir).join();
+            } catch (IOException e) {
+                Util.displayIOException(e, listener);
+                Functions.printStackTrace(e, listener.fatalError("command execution failed"));
+                throw e;
+            }
+        } finally {
+            try {
+                if (script != null)
+                    script.delete();
+            } catch (IOException e) {
+                Functions.printStackTrace(e, listener.fatalError("Unable to delete script file " + script));
+            }
+        }
+    }
+
+    /**
+     * Runs the script in the workspace of the build with {@link CommandInterpreter#perform(AbstractBuild, Launcher, TaskListener)},
+     * keeping track of the exit code it only tells success or failure of.
+     */
+    private static int performInWorkspace(CommandInterpreter interpreter, AbstractBuild<?, ?> build, Launcher launcher,
+                                          TaskListener listener, OutputStream out) throws IOException, InterruptedException {
+        ExitCodeLauncher l = new ExitCodeLauncher(launcher);
+        TaskListener tl = out == listener.getLogger() ? listener : new StreamBuildListener(out, Charset.defaultCharset());
+        boolean ok = interpreter.perform(build, l, tl);
+        tl.getLogger().flush();
+        if (ok)
+            return 0; // including an exit code the interpreter counts as unstable
+        if (l.exitCode == null)
+            throw new IOException("Failed to run the script"); // reported by the interpreter
+        return l.exitCode;
+    }
+
+    /**
+     * Remembers the exit code of the last process launched through it.
+     */
+    private static final class ExitCodeLauncher extends Launcher.DecoratedLauncher {
+        private volatile Integer exitCode;
+
+        ExitCodeLauncher(Launcher inner) {
+            super(inner);
+        }
+
+        @Override
+        public Proc launch(ProcStarter starter) throws IOException {
+            final Proc p = super.launch(starter);
+            return new Proc() {
+                @Override
+                public boolean isAlive() throws IOException, InterruptedException {
+                    return p.isAlive();
+                }
+
+                @Override
+                public void kill() throws IOException, InterruptedException {
+                    p.kill();
+                }
+
+                @Override
+                public int join() throws IOException, InterruptedException {
+                    int r = p.join();
+                    exitCode = r;
+                    return r;
+                }
+
+                @Override
+                public InputStream getStdout() {
+                    return p.getStdout();
+                }
+
+                @Override
+                public InputStream getStderr() {
+                    return p.getStderr();
+                }
+
+                @Override
+                public OutputStream getStdin() {
+                    return p.getStdin();
+                }
+            };
+        }
+    }
+
+    /**
+     * Computes the environment the script runs with.
+     */
+    private static EnvVars buildEnvironment(Run<?, ?> build, FilePath dir, TaskListener listener) throws IOException, InterruptedException {
+        EnvVars env = build.getEnvironment(listener);
+        env.put("WORKSPACE", dir.getRemote());
+        return env;
+    }
+
+    /**
+     * Takes over the outcome of an earlier successful run with the same inputs:
+     * copies its log and its outputs.
+     */
+    private void reuse(BatchRun hit, TaskListener listener) throws IOException, InterruptedException {
+        listener.getLogger().println(Messages.BatchRun_CacheHit(hit.getDisplayName()));
+        File log = hit.getLogFile();
+        if (log.exists())
+            Files.copy(log.toPath(), listener.getLogger());
+        TaskOutputs.reuse(hit.getOutputsDir(), getOutputsDir());
+        cachedFrom = hit.getNumber();
+    }
+
+    /**
+     * Archives the files the task declared as its outputs.
+     * Failing to do so is reported but doesn't change the result of the run.
+     */
+    private void collectOutputs(FilePath dir, String glob, TaskListener listener) throws InterruptedException {
+        try {
+            int n = TaskOutputs.collect(dir, glob, getOutputsDir());
+            listener.getLogger().println(Messages.BatchRun_CollectedOutputs(n));
+        } catch (IOException e) {
+            Functions.printStackTrace(e, listener.error("Failed to archive outputs " + glob));
+        }
+    }
+
+    /**
+     * Is the workspace of the build still holding what that build left there,
+     * rather than having been reused by a later build?
+     */
+    private static boolean isWorkspaceOf(Run<?, ?> build, FilePath ws) throws IOException, InterruptedException {
+        for (Run<?, ?> b = build.getNextBuild(); b != null; b = b.getNextBuild()) {
+            BuildWorkspace bw = BuildWorkspace.of(b);
+            if (bw != null && ws.equals(bw.getWorkspace()))
+                return false;
+        }
+        return ws.exists();
+    }
+
+    /**
+     * Allocates a fresh directory under the root of the node to run the task in when there's no workspace to use.
+     */
+    private static FilePath createScratchDir(FilePath root) throws IOException, InterruptedException {
+        FilePath dir = root.child("batch-task-scratch");
+        dir.mkdirs();
+        return dir.createTempDir("task", null);
+    }
+
+    /**
+     * Aborts this run once it has been going for the given number of minutes.
+     *
+     * <p>
+     * This first interrupts the executor, as the abort button does, which lets the script
+     * be stopped the usual way. If the run is still going {@link #TIMEOUT_GRACE_PERIOD} seconds later,
+     * every process on the node that carries the cookie of this run is killed, the script and whatever
+     * it left behind alike, and the executor is interrupted again. That repeats until the run ends.
+     *
+     * @param cookie
+     *      Environment variable the processes of this run have.
+     */
+    private ScheduledFuture<?> startWatchdog(final Executor executor, final Launcher launcher,
+                                             final Map<String, String> cookie, int minutes) {
+        return Timer.get().schedule(new Runnable() {
+            public void run() {
+                if (!performing || executor.getCurrentExecutable() != BatchRun.this)
+                    return; // already done
+                if (timedOut) {
+                    // didn't stop when asked to
+                    try {
+                        launcher.kill(cookie);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to kill the processes of " + BatchRun.this, e);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                timedOut = true;
+                executor.interrupt(Result.ABORTED);
+                Timer.get().schedule(this, TIMEOUT_GRACE_PERIOD, TimeUnit.SECONDS);
+            }
+        }, minutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Sends the log as plain text.
+     *
+     * <p>
+     * The log of a completed run never changes, so it is served with validators,
+     * byte ranges and compression, which lets clients and proxies keep it.
+     */
+    public void doConsoleText(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        File log = getLogFile();
+        if (!log.exists()) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String contentType = "text/plain;charset=" + Charset.defaultCharset().name();
+        if (!isRunning()) {
+            HttpCaching.serveFile(req, rsp, log, contentType, HttpCaching.isPublic(parent.owner.getParent()));
+            return;
         }
+        rsp.setContentType(contentType);
+        rsp.setHeader("Cache-Control", "no-cache");
+        new LargeText(log, Charset.defaultCharset(), false).writeLogTo(0, rsp.getOutputStream());
     }
 
     /**
@@ -341,25 +1063,139 @@ public final class BatchRun extends Actionable implements Executable, Comparable
      * Newer records should appear before older records.
      */
     public int compareTo(BatchRun that) {
-        return that.timestamp.compareTo(this.timestamp);
+        return Long.compare(that.startTime, this.startTime);
+    }
+
+    /**
+     * Gets the key that identifies this run.
+     */
+    public BatchRunKey getKey() {
+        return new BatchRunKey(parent.owner.getParent().getFullName(), parent.owner.getNumber(), id);
     }
 
+    /**
+     * Two records are the same run if they have the same id in the same build of the same project,
+     * like their {@link #getKey() keys}. Nothing that changes as the run progresses is compared.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        BatchRun batchRun = (BatchRun) o;
-        return id == batchRun.id && duration == batchRun.duration && Objects.equals(result, batchRun.result) && Objects.equals(timestamp, batchRun.timestamp) && Objects.equals(parent, batchRun.parent) && Objects.equals(taskName, batchRun.taskName);
+        if (!(o instanceof BatchRun)) return false;
+        BatchRun that = (BatchRun) o;
+        return id == that.id
+                && parent.owner.getNumber() == that.parent.owner.getNumber()
+                && parent.owner.getParent() == that.parent.owner.getParent();
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(result, timestamp, parent, id, taskName, duration);
+        return parent.owner.getNumber() * 31 + id;
     }
 
     public long getEstimatedDuration() {
         return getParent().getEstimatedDuration();
     }
 
+    /**
+     * Part of the task output delimited by section markers, and how long it took.
+     */
+    public static final class Section {
+        /**
+         * Name given by the marker.
+         */
+        public final String name;
+        /**
+         * Milli-seconds since the start of the run when this section started.
+         */
+        public final long start;
+        /**
+         * Milli-seconds this section took, or -1 if it is still going.
+         */
+        private long duration = -1;
+
+        Section(String name, long start) {
+            this.name = name;
+            this.start = start;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public boolean isRunning() {
+            return duration < 0;
+        }
+
+        public String getStartString() {
+            return Util.getTimeSpanString(start);
+        }
+
+        public String getDurationString() {
+            if (isRunning()) return "-";
+            return Util.getTimeSpanString(duration);
+        }
+    }
+
+    /**
+     * One attempt to run the script of a task with a {@link RetryPolicy}, and how it went.
+     */
+    public static final class Attempt {
+        /**
+         * Milli-seconds since the start of the run when this attempt started.
+         */
+        public final long start;
+        /**
+         * Milli-seconds this attempt took, or -1 if it is still going.
+         */
+        private long duration = -1;
+        /**
+         * Exit code of the script, or null if it didn't get to exit normally.
+         */
+        private Integer exitCode;
+
+        Attempt(long start) {
+            this.start = start;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public Integer getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isRunning() {
+            return duration < 0;
+        }
+
+        public String getStartString() {
+            return Util.getTimeSpanString(start);
+        }
+
+        public String getDurationString() {
+            if (isRunning()) return "-";
+            return Util.getTimeSpanString(duration);
+        }
+    }
+
+    /**
+     * Seconds to wait after interrupting a timed out run before killing its processes.
+     */
+    public static int TIMEOUT_GRACE_PERIOD = Integer.getInteger(BatchRun.class.getName() + ".timeoutGracePeriod", 30);
+
+    /**
+     * Environment variable that marks the processes of a run.
+     */
+    private static final String COOKIE = "BATCH_TASK_COOKIE";
+
     private static final Logger LOGGER = Logger.getLogger(BatchRun.class.getName());
 }
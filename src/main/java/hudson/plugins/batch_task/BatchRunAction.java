@@ -1,27 +1,29 @@
 package hudson.plugins.batch_task;
 
-import hudson.model.AbstractBuild;
 import hudson.model.Action;
-import hudson.model.Build;
+import hudson.model.Api;
+import hudson.model.Run;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.GregorianCalendar;
 import java.util.LinkedList;
 import java.util.List;
 
 /**
- * {@link Build} {@link Action} that shows the records of executed tasks.
+ * {@link Run} {@link Action} that shows the records of executed tasks.
  * @author Kohsuke Kawaguchi
  */
+@ExportedBean
 public final class BatchRunAction implements Action {
-    public final AbstractBuild<?,?> owner;
+    public final Run<?,?> owner;
     protected final List<BatchRun> records = new LinkedList<BatchRun>();
 
-    public BatchRunAction(AbstractBuild<?, ?> owner) {
+    public BatchRunAction(Run<?, ?> owner) {
         this.owner = owner;
     }
 
@@ -41,7 +43,7 @@ public final class BatchRunAction implements Action {
      * Creates and adds a new reocrd.
      */
     protected synchronized BatchRun createRecord(BatchTask task) throws IOException {
-        BatchRun r = new BatchRun(new GregorianCalendar(),this,records.size()+1,task);
+        BatchRun r = new BatchRun(System.currentTimeMillis(),this,records.size()+1,task);
         records.add(0,r);
         owner.save();
         return r;
@@ -49,16 +51,18 @@ public final class BatchRunAction implements Action {
 
     /**
      * Gets run records. Newer ones first.
+     * This is a snapshot, so it can be iterated while runs get added.
      */
-    public List<BatchRun> getRecords() {
-        return Collections.unmodifiableList(records);
+    @Exported
+    public synchronized List<BatchRun> getRecords() {
+        return Collections.unmodifiableList(new ArrayList<BatchRun>(records));
     }
 
     /**
      * Get run records for a particular task.
      * @param taskName Get runs for this task
      */
-    public List<BatchRun> getRecords(String taskName) {
+    public synchronized List<BatchRun> getRecords(String taskName) {
         List<BatchRun> result = new ArrayList<BatchRun>(records.size());
         for (BatchRun r : records) {
             if (r.taskName.equals(taskName)) result.add(r);
@@ -69,7 +73,7 @@ public final class BatchRunAction implements Action {
     /**
      * Returns the record that has the given ID.
      */
-    public BatchRun getRecord(int id) {
+    public synchronized BatchRun getRecord(int id) {
         // normally this is where it is
         int idx = records.size()-id;
         if(idx>=0 && id!=0) {
@@ -91,6 +95,15 @@ public final class BatchRunAction implements Action {
         return this;
     }
 
+    /**
+     * Remote API access. Records come and go with the runs of the tasks,
+     * so this follows the revision of the tasks of the project.
+     */
+    public Api getApi() {
+        BatchTaskProperty p = owner.getParent().getProperty(BatchTaskProperty.class);
+        return new ConditionalApi(this, p != null ? p.getIndex().getRevision() : 0);
+    }
+
     public BatchRun getDynamic(String token, StaplerRequest req, StaplerResponse rsp) {
         return getRecord(Integer.parseInt(token));
     }
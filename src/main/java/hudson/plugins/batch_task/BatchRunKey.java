@@ -0,0 +1,69 @@
+package hudson.plugins.batch_task;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Job;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+/**
+ * Identifies a {@link BatchRun} by the full name of its project, its build number and its id,
+ * without holding on to any of them.
+ *
+ * <p>
+ * Immutable and cheap to hash, so it can be used as a key of maps and sets,
+ * and it can be persisted to find the run again after a restart.
+ *
+ * @see BatchRun#getKey()
+ */
+public final class BatchRunKey {
+    public final String job;
+    public final int build;
+    public final int id;
+
+    private final transient int hash;
+
+    public BatchRunKey(String job, int build, int id) {
+        this.job = job;
+        this.build = build;
+        this.id = id;
+        this.hash = (job.hashCode() * 31 + build) * 31 + id;
+    }
+
+    /**
+     * Finds the run this key points to, or null if it's gone.
+     */
+    @CheckForNull
+    public BatchRun resolve() {
+        Job<?, ?> j = Jenkins.get().getItemByFullName(job, Job.class);
+        if (j == null) return null;
+        Run<?, ?> b = j.getBuildByNumber(build);
+        if (b == null) return null;
+        BatchRunAction a = b.getAction(BatchRunAction.class);
+        return a != null ? a.getRecord(id) : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BatchRunKey)) return false;
+        BatchRunKey that = (BatchRunKey) o;
+        return hash == that.hash && build == that.build && id == that.id && job.equals(that.job);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return job + " #" + build + '-' + id;
+    }
+
+    /**
+     * XStream doesn't call the constructor, so the hash is computed here.
+     */
+    private Object readResolve() {
+        return new BatchRunKey(job, build, id);
+    }
+}
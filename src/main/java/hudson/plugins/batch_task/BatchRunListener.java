@@ -0,0 +1,52 @@
+package hudson.plugins.batch_task;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives notifications when {@link BatchRun}s start and complete.
+ *
+ * <p>
+ * Put {@link hudson.Extension} on a subclass to have it registered.
+ */
+public abstract class BatchRunListener implements ExtensionPoint {
+    /**
+     * Called when a run starts executing, before the script is launched.
+     * Also called when a durable run is resumed after a restart.
+     */
+    public void onStarted(BatchRun run) {}
+
+    /**
+     * Called after a run has finished and its result has been recorded.
+     */
+    public void onCompleted(BatchRun run) {}
+
+    public static ExtensionList<BatchRunListener> all() {
+        return ExtensionList.lookup(BatchRunListener.class);
+    }
+
+    /*package*/ static void fireStarted(BatchRun run) {
+        for (BatchRunListener l : all()) {
+            try {
+                l.onStarted(run);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, l + " failed to handle the start of " + run, e);
+            }
+        }
+    }
+
+    /*package*/ static void fireCompleted(BatchRun run) {
+        for (BatchRunListener l : all()) {
+            try {
+                l.onCompleted(run);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, l + " failed to handle the completion of " + run, e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BatchRunListener.class.getName());
+}
@@ -1,21 +1,30 @@
 package hudson.plugins.batch_task;
 
-import hudson.model.AbstractBuild;
+import hudson.Util;
 import hudson.model.AbstractModelObject;
 import hudson.model.AbstractProject;
+import hudson.model.Api;
+import hudson.model.Action;
 import hudson.model.BallColor;
 import hudson.model.Cause.UserCause;
 import hudson.model.Queue.Task;
 import hudson.model.CauseAction;
+import hudson.model.Executor;
 import hudson.model.Hudson;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
 import hudson.model.Queue;
 import hudson.model.ResourceList;
-import hudson.model.Result;
 import hudson.model.Job;
+import hudson.model.Run;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.SubTask;
+import hudson.model.queue.WorkUnit;
+import hudson.scheduler.CronTabList;
+import hudson.scheduler.Hash;
 import hudson.security.AccessControlled;
 import hudson.util.Iterators;
 import hudson.widgets.BuildHistoryWidget;
@@ -23,22 +32,34 @@ import hudson.widgets.HistoryWidget;
 import hudson.widgets.HistoryWidget.Adapter;
 import hudson.security.ACL;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.acegisecurity.Authentication;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
 import javax.annotation.Nonnull;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.thoughtworks.xstream.converters.basic.AbstractSingleValueConverter;
 import org.kohsuke.stapler.verb.POST;
 
 /**
@@ -46,6 +67,7 @@ import org.kohsuke.stapler.verb.POST;
  * 
  * @author Kohsuke Kawaguchi
  */
+@ExportedBean
 public final class BatchTask extends AbstractModelObject implements Queue.Task, AccessControlled {
     /**
      * Name of this task. Used for display.
@@ -55,8 +77,91 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
      * Shell script to be executed.
      */
     public final String script;
+    /**
+     * Program that runs {@link #script}. Null for {@link Interpreter#AUTO}.
+     */
+    private Interpreter interpreter;
+    /**
+     * Minutes a run may take before it gets aborted. 0 for no limit.
+     */
+    private int timeout;
+    /**
+     * Kilobytes of output kept in the log of a run. 0 for no limit.
+     */
+    private int logSizeLimit;
+    /**
+     * Seconds a triggered run waits in the queue. Triggers arriving in the meantime
+     * are folded into the already queued run, keeping their causes.
+     */
+    private int quietPeriod;
+    /**
+     * Runs of tasks with higher priority leave the queue before other builds and tasks.
+     * 0 is the priority of everything else in the queue.
+     *
+     * @see BatchTaskQueueSorter
+     */
+    private int priority;
+    /**
+     * Runs of this task allowed at the same time. 0 or 1 for one at a time.
+     *
+     * @see ConcurrencyLimits
+     */
+    private int maxConcurrent;
+    /**
+     * When to try a failed script again within the same run. Null to never retry.
+     */
+    private RetryPolicy retry;
+    /**
+     * If true, runs work on the archived artifacts of the build in a scratch directory
+     * and leave the workspace alone.
+     */
+    private boolean useArtifacts;
+    /**
+     * If true, the script is launched detached on the node so that it survives a restart of Jenkins.
+     *
+     * @see DurableExecution
+     */
+    private boolean durable;
+    /**
+     * Ant-style glob of the files a run leaves behind that should be kept with the run. Null for none.
+     */
+    private String outputs;
+    /**
+     * If true, a run whose inputs are the same as those of an earlier successful run
+     * reuses the outcome of that run instead of running the script.
+     *
+     * @see TaskCache
+     */
+    private boolean cache;
+    /**
+     * Ant-style glob of the files the outcome of a run depends on. Null for none.
+     */
+    private String cacheInputs;
+    /**
+     * Names of the environment variables the outcome of a run depends on,
+     * separated by spaces or commas. Null for none.
+     */
+    private String cacheVariables;
+    /**
+     * When the task runs on its own, in the syntax of build triggers, H included. Null for never.
+     *
+     * @see BatchTaskCron
+     */
+    private String cronSpec;
+    /**
+     * {@link #cronSpec} parsed, on first use.
+     */
+    private transient volatile CronTabList cronTabs;
+    /**
+     * Set once {@link #cronSpec} failed to parse, so that it isn't parsed and reported again every minute.
+     */
+    private transient volatile boolean cronInvalid;
+    /**
+     * Parameters a run takes. Null if the task isn't parameterized.
+     */
+    private List<ParameterDefinition> parameterDefinitions;
 
-    /*package*/ transient AbstractProject<?,?> owner;
+    /*package*/ transient Job<?,?> owner;
 
     /*package*/ transient BatchTaskProperty parent;
 
@@ -66,6 +171,181 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
         this.script = script;
     }
 
+    public Interpreter getInterpreter() {
+        return interpreter != null ? interpreter : Interpreter.AUTO;
+    }
+
+    @DataBoundSetter
+    public void setInterpreter(Interpreter interpreter) {
+        this.interpreter = interpreter == Interpreter.AUTO ? null : interpreter;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = Math.max(0, timeout);
+    }
+
+    public int getLogSizeLimit() {
+        return logSizeLimit;
+    }
+
+    @DataBoundSetter
+    public void setLogSizeLimit(int logSizeLimit) {
+        this.logSizeLimit = Math.max(0, logSizeLimit);
+    }
+
+    public int getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    @DataBoundSetter
+    public void setQuietPeriod(int quietPeriod) {
+        this.quietPeriod = Math.max(0, quietPeriod);
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    @DataBoundSetter
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+    }
+
+    public RetryPolicy getRetry() {
+        return retry;
+    }
+
+    @DataBoundSetter
+    public void setRetry(RetryPolicy retry) {
+        this.retry = retry;
+    }
+
+    public boolean isUseArtifacts() {
+        return useArtifacts;
+    }
+
+    @DataBoundSetter
+    public void setUseArtifacts(boolean useArtifacts) {
+        this.useArtifacts = useArtifacts;
+    }
+
+    public boolean isDurable() {
+        return durable;
+    }
+
+    @DataBoundSetter
+    public void setDurable(boolean durable) {
+        this.durable = durable;
+    }
+
+    public String getOutputs() {
+        return outputs;
+    }
+
+    @DataBoundSetter
+    public void setOutputs(String outputs) {
+        this.outputs = Util.fixEmptyAndTrim(outputs);
+    }
+
+    public boolean isCache() {
+        return cache;
+    }
+
+    @DataBoundSetter
+    public void setCache(boolean cache) {
+        this.cache = cache;
+    }
+
+    public String getCacheInputs() {
+        return cacheInputs;
+    }
+
+    @DataBoundSetter
+    public void setCacheInputs(String cacheInputs) {
+        this.cacheInputs = Util.fixEmptyAndTrim(cacheInputs);
+    }
+
+    public String getCacheVariables() {
+        return cacheVariables;
+    }
+
+    @DataBoundSetter
+    public void setCacheVariables(String cacheVariables) {
+        this.cacheVariables = Util.fixEmptyAndTrim(cacheVariables);
+    }
+
+    public String getCronSpec() {
+        return cronSpec;
+    }
+
+    @DataBoundSetter
+    public void setCronSpec(String cronSpec) {
+        this.cronSpec = Util.fixEmptyAndTrim(cronSpec);
+        this.cronTabs = null;
+        this.cronInvalid = false;
+    }
+
+    /**
+     * Is the task scheduled to run on its own in the given minute?
+     * H in the schedule is hashed from the project and the task name, which spreads tasks
+     * with the same schedule over the hour, day and so on.
+     */
+    /*package*/ boolean isDue(Calendar minute) {
+        if (cronSpec == null || cronInvalid) return false;
+        CronTabList tabs = cronTabs;
+        if (tabs == null) {
+            try {
+                tabs = CronTabList.create(cronSpec, Hash.from(owner.getFullName() + '/' + name));
+            } catch (Exception e) {
+                cronInvalid = true;
+                LOGGER.log(Level.WARNING, "Invalid schedule \"" + cronSpec + "\" of " + getFullDisplayName()
+                        + ", it won't run on its own: " + e.getMessage());
+                return false;
+            }
+            cronTabs = tabs;
+        }
+        return tabs.check(minute);
+    }
+
+    public List<ParameterDefinition> getParameterDefinitions() {
+        if (parameterDefinitions == null) return Collections.emptyList();
+        return Collections.unmodifiableList(parameterDefinitions);
+    }
+
+    @DataBoundSetter
+    public void setParameterDefinitions(List<ParameterDefinition> parameterDefinitions) {
+        this.parameterDefinitions = parameterDefinitions == null || parameterDefinitions.isEmpty()
+                ? null : new ArrayList<ParameterDefinition>(parameterDefinitions);
+    }
+
+    /**
+     * Does a run of this task take parameters?
+     */
+    public boolean isParameterized() {
+        return parameterDefinitions != null;
+    }
+
+    public ParameterDefinition getParameterDefinition(String name) {
+        for (ParameterDefinition d : getParameterDefinitions())
+            if (d.getName().equals(name))
+                return d;
+        return null;
+    }
+
     public BatchTaskProperty getParent() {
         return parent;
     }
@@ -83,26 +363,42 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
     }
 
     public boolean isBuildBlocked() {
-        return owner.isBuildBlocked();
+        return getCauseOfBlockage() != null;
     }
 
-    @SuppressWarnings("deprecation")
     public String getWhyBlocked() {
-        return owner.getWhyBlocked();
+        CauseOfBlockage cause = getCauseOfBlockage();
+        return cause != null ? cause.getShortDescription() : null;
     }
 
+    /**
+     * Freestyle-type projects keep us waiting while they are building,
+     * since we share the workspace. Pipeline builds lock their workspaces themselves,
+     * which we respect when we acquire the workspace.
+     * Then there are the limits on how many runs may go on at the same time.
+     */
     public CauseOfBlockage getCauseOfBlockage() {
-        return owner.getCauseOfBlockage();
+        if (owner instanceof AbstractProject) {
+            CauseOfBlockage cause = ((AbstractProject<?,?>) owner).getCauseOfBlockage();
+            if (cause != null) return cause;
+        }
+        return ConcurrencyLimits.check(this);
     }
 
+    @Exported(visibility=2)
     public String getName() {
         return name;
     }
 
+    /**
+     * Runs may overlap if the task allows more than one at a time.
+     * Those that share a workspace still take turns on it.
+     */
     public boolean isConcurrentBuild() {
-        return false;
+        return maxConcurrent > 1;
     }
 
+    @Exported
     public long getEstimatedDuration() {
         BatchRun b = getLastSuccessfulRun();
         if(b==null)     return -1;
@@ -114,19 +410,24 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
     }
 
     public Label getAssignedLabel() {
-        Node on = owner.getLastBuiltOn();
+        Node on = getLastBuiltOn();
         if(on==null)    return null;
         return on.getSelfLabel();
     }
 
     public Node getLastBuiltOn() {
-        return owner.getLastBuiltOn();
+        if (owner instanceof AbstractProject)
+            return ((AbstractProject<?,?>) owner).getLastBuiltOn();
+        Run<?,?> lb = owner.getLastBuild();
+        BuildWorkspace ws = lb != null ? BuildWorkspace.of(lb) : null;
+        return ws != null ? ws.getNode() : null;
     }
 
     public String getBuildStatusUrl() {
         return getIconColor()+".gif";
     }
 
+    @Exported(visibility=2,name="color")
     public BallColor getIconColor() {
         BatchRun r = getLastRun();
         if(r==null) return BallColor.GREY;
@@ -136,30 +437,19 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
     /**
      * Obtains the latest {@link BatchRun} record.
      */
+    @Exported(visibility=2)
     public BatchRun getLastRun() {
-        for(AbstractBuild<?,?> b : owner.getBuilds()) {
-            BatchRunAction bra = b.getAction(BatchRunAction.class);
-            if(bra==null)   continue;
-            for (BatchRun br : bra.records) {
-                if(br.taskName.equals(name))
-                    return br;
-            }
-        }
-        return null;
+        return parent.getIndex().getLastRun(name);
     }
 
+    @Exported
     public BatchRun getLastSuccessfulRun() {
-        for(BatchRun r=getLastRun(); r!=null; r=r.getPrevious())
-            if(r.getResult()== Result.SUCCESS)
-                return r;
-        return null;
+        return parent.getIndex().getLastSuccessfulRun(name);
     }
 
+    @Exported
     public BatchRun getLastFailedRun() {
-        for(BatchRun r=getLastRun(); r!=null; r=r.getPrevious())
-            if(r.getResult()==Result.FAILURE)
-                return r;
-        return null;
+        return parent.getIndex().getLastFailedRun(name);
     }
 
     /**
@@ -168,8 +458,8 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
     public Iterable<BatchRun> getRuns() {
         return new Iterable<BatchRun>() {
             public Iterator<BatchRun> iterator() {
-                return new Iterators.FlattenIterator<BatchRun,AbstractBuild<?,?>>(owner.getBuilds().iterator()) {
-                    protected Iterator<BatchRun> expand(AbstractBuild<?,?> b) {
+                return new Iterators.FlattenIterator<BatchRun,Run<?,?>>(owner.getBuilds().iterator()) {
+                    protected Iterator<BatchRun> expand(Run<?,?> b) {
                         BatchRunAction a = b.getAction(BatchRunAction.class);
                         if(a==null) return Iterators.empty();
                         else        return a.getRecords(name).iterator();
@@ -184,7 +474,7 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
     }
 
     public BatchRun createExecutable() throws IOException {
-        AbstractBuild<?,?> lb = owner.getLastBuild();
+        Run<?,?> lb = getTargetBuild();
         if (lb == null) return null;
         BatchRunAction records;
         synchronized (lb) {
@@ -200,12 +490,37 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
     }
 
     /**
-     * Gets the expected build number assigned to the next run.
+     * Determines the build that the run being started on the current executor should execute against:
+     * the one asked for by {@link TargetBuildAction}, if any, otherwise the last build.
+     */
+    private Run<?,?> getTargetBuild() {
+        Executor e = Executor.currentExecutor();
+        WorkUnit wu = e != null ? e.getCurrentWorkUnit() : null;
+        if (wu != null) {
+            for (Action a : wu.context.actions)
+                if (a instanceof TargetBuildAction)
+                    return owner.getBuildByNumber(((TargetBuildAction) a).number);
+        }
+        return owner.getLastBuild();
+    }
+
+    /**
+     * Gets the expected build number assigned to the next run against the last build.
      *
      * @return string like "5-3"
      */
     public String getNextBuildNumber() {
-        AbstractBuild<?,?> lb = owner.getLastBuild();
+        return getNextBuildNumber(owner.getLastBuild());
+    }
+
+    /**
+     * Gets the expected build number assigned to the next run against the given build.
+     *
+     * @param lb
+     *      The build the run executes against, as asked by {@link TargetBuildAction}. Null if there's none.
+     * @return string like "5-3"
+     */
+    public String getNextBuildNumber(Run<?,?> lb) {
         if(lb==null)    return "0-0";
 
         int id=1;
@@ -244,16 +559,18 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
     }
 
     /**
-     * {@link BatchTask} requires exclusive access to the workspace.
+     * {@link BatchTask} requires exclusive access to the workspace of a freestyle-type project,
+     * unless it only works on the archived artifacts.
      */
     public ResourceList getResourceList() {
-        return new ResourceList().w(owner.getWorkspaceResource());
+        if (useArtifacts || !(owner instanceof AbstractProject)) return new ResourceList();
+        return new ResourceList().w(((AbstractProject<?,?>) owner).getWorkspaceResource());
     }
 
     public Object getDynamic(String token, StaplerRequest req, StaplerResponse rsp) {
         Matcher m = BUILD_NUMBER_PATTERN.matcher(token);
         if(m.matches()) {
-            AbstractBuild<?,?> b = owner.getBuildByNumber(Integer.parseInt(m.group(1)));
+            Run<?,?> b = owner.getBuildByNumber(Integer.parseInt(m.group(1)));
             if(b==null)     return null;
             BatchRunAction a = b.getAction(BatchRunAction.class);
             if(a==null)     return null;
@@ -263,14 +580,97 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
     }
 
     /**
-     * Schedules the execution
+     * Puts a run of this task into the queue, after the quiet period of the task.
+     * If the task is parameterized and no {@link ParametersAction} is given, the default values are used.
+     *
+     * @return the queue item, or null if the queue refused it.
+     */
+    public Queue.Item schedule(Action... actions) {
+        List<Action> all = new ArrayList<Action>(Arrays.asList(actions));
+        if (isParameterized() && Util.filter(all, ParametersAction.class).isEmpty())
+            all.add(createParametersAction(getDefaultParameterValues()));
+        return Jenkins.getInstance().getQueue().schedule2(this, quietPeriod, all).getItem();
+    }
+
+    private List<ParameterValue> getDefaultParameterValues() {
+        List<ParameterValue> values = new ArrayList<ParameterValue>();
+        for (ParameterDefinition d : getParameterDefinitions()) {
+            ParameterValue v = d.getDefaultParameterValue();
+            if (v != null) values.add(v);
+        }
+        return values;
+    }
+
+    /**
+     * Reads the parameter values submitted from the "parameters" page.
+     * Parameters missing from the form get their default value.
+     */
+    private List<ParameterValue> getParameterValues(StaplerRequest req) throws ServletException {
+        Map<String, ParameterValue> values = new LinkedHashMap<String, ParameterValue>();
+        Object submitted = req.getSubmittedForm().opt("parameter");
+        if (submitted != null) {
+            for (Object o : JSONArray.fromObject(submitted)) {
+                JSONObject jo = (JSONObject) o;
+                String name = jo.getString("name");
+                ParameterDefinition d = getParameterDefinition(name);
+                if (d == null)
+                    throw new IllegalArgumentException("No such parameter definition: " + name);
+                ParameterValue v = d.createValue(req, jo);
+                if (v != null) values.put(name, v);
+            }
+        }
+        for (ParameterValue v : getDefaultParameterValues())
+            if (!values.containsKey(v.getName()))
+                values.put(v.getName(), v);
+        return new ArrayList<ParameterValue>(values.values());
+    }
+
+    private ParametersAction createParametersAction(List<ParameterValue> values) {
+        // these are our own definitions, so they are all safe to expose
+        List<String> names = new ArrayList<String>();
+        for (ParameterDefinition d : getParameterDefinitions())
+            names.add(d.getName());
+        return new ParametersAction(values, names);
+    }
+
+    /**
+     * Schedules the execution.
+     *
+     * <p>
+     * The optional "build" parameter names the build to run against, instead of the last one.
+     * Parameterized tasks are sent to the "parameters" page to fill in the values first.
      */
     @POST
     public synchronized void doExecute( StaplerRequest req, StaplerResponse rsp ) throws IOException, ServletException {
         getACL().checkPermission(AbstractProject.BUILD);
 
-        if (owner.getLastBuild() != null) {
-            Jenkins.getInstance().getQueue().schedule(this,0,new CauseAction(new UserCause()));
+        List<Action> actions = new ArrayList<Action>();
+        actions.add(new CauseAction(new UserCause()));
+        if (isParameterized()) {
+            if (req.getParameter("json") == null) {
+                rsp.sendRedirect2("parameters");
+                return;
+            }
+            actions.add(createParametersAction(getParameterValues(req)));
+        }
+
+        String build = Util.fixEmptyAndTrim(req.getParameter("build"));
+        if (build != null) {
+            Run<?,?> b = null;
+            try {
+                b = owner.getBuildByNumber(Integer.parseInt(build));
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            if (b == null) {
+                rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such build: " + build);
+                return;
+            }
+            actions.add(new TargetBuildAction(b.getNumber()));
+            schedule(actions.toArray(new Action[0]));
+            rsp.forwardToPreviousPage(req);
+        } else if (owner.getLastBuild() != null) {
+            schedule(actions.toArray(new Action[0]));
             rsp.forwardToPreviousPage(req);
         } else {
             rsp.sendRedirect2("noBuild");
@@ -285,9 +685,19 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
         getACL().checkPermission(AbstractProject.DELETE);
         
         getParent().removeTask(this);
+        cancelQueued();
         rsp.sendRedirect2("../..");
     }
 
+    /**
+     * Cancels the runs of this task still in the queue, which could never start once the task is gone.
+     */
+    void cancelQueued() {
+        Queue q = Jenkins.get().getQueue();
+        for (Queue.Item i : q.getItems(this))
+            q.cancel(i);
+    }
+
     private static final Adapter<BatchRun> ADAPTER = new Adapter<BatchRun>() {
         public int compare(BatchRun record, String key) {
             int[] lhs = parse(record.getNumber());
@@ -322,6 +732,8 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
 
     private static final Pattern BUILD_NUMBER_PATTERN = Pattern.compile("(\\d+)-(\\d+)");
 
+    private static final Logger LOGGER = Logger.getLogger(BatchTask.class.getName());
+
     @POST
 	public void doCancelQueue(StaplerRequest req, StaplerResponse rsp)
 			throws IOException, ServletException {
@@ -335,34 +747,21 @@ public final class BatchTask extends AbstractModelObject implements Queue.Task,
     	return owner.getUrl() + "batchTasks/task/" + name + "/";
     }
 
-    static {
-        // Used when BatchTask is in Queue at Hudson shutdown
-        Queue.XSTREAM.registerConverter(new AbstractSingleValueConverter() {
-
-            @Override
-            public boolean canConvert(Class klazz) {
-                return BatchTask.class==klazz;
-            }
+    @Exported(visibility=2,name="url")
+    public String getAbsoluteUrl() {
+        return Jenkins.get().getRootUrl() + getUrl();
+    }
 
-            @Override
-            public Object fromString(String str) {
-                int idx=str.lastIndexOf('/');
-                if(idx<0)   throw new NoSuchElementException("Illegal format: "+str);
-
-                String projectName = str.substring(0, idx);
-                Job<?,?> job = (Job<?,?>) Jenkins.getInstance().getItemByFullName(projectName);
-                if(job==null)  throw new NoSuchElementException("No such job exists: "+projectName);
-                BatchTaskProperty bp = job.getProperty(BatchTaskProperty.class);
-                if(bp==null)  throw new NoSuchElementException(projectName+" doesn't have the batck task anymore");
-                return bp.getTask(str.substring(idx+1));                
-            }
+    /**
+     * Remote API access.
+     */
+    public Api getApi() {
+        return new ConditionalApi(this, parent.getIndex().getRevision());
+    }
 
-            @Override
-            public String toString(Object item) {
-                BatchTask bt = (BatchTask) item;
-                return bt.owner.getFullName()+"/"+bt.name;
-            }
-        });
+    static {
+        // Used when BatchTask is in Queue at Hudson shutdown
+        Queue.XSTREAM.registerConverter(new BatchTaskConverter());
     }
 
     /**
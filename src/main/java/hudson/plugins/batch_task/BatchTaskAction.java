@@ -1,46 +1,72 @@
 package hudson.plugins.batch_task;
 
-import hudson.model.AbstractProject;
 import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.BallColor;
+import hudson.model.Item;
+import hudson.model.Job;
 import hudson.model.Run;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.time.Instant;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Shows all the tasks.
  *
  * @author Kohsuke Kawaguchi
  */
+@ExportedBean
 public class BatchTaskAction implements Action {
-    public final AbstractProject<?,?> project;
+    public final Job<?,?> project;
     public final BatchTaskProperty property;
 
-    public BatchTaskAction(AbstractProject<?, ?> project, BatchTaskProperty property) {
+    public BatchTaskAction(Job<?, ?> project, BatchTaskProperty property) {
         this.project = project;
         this.property = property;
     }
 
+    @Exported
     public List<BatchTask> getTasks() {
         return property.getTasks();
     }
 
+    /**
+     * Gets the status of all the tasks at once, for the overview table.
+     * This is cheaper than asking each task for its runs, as each build is looked up only once.
+     */
+    public List<Summary> getSummaries() {
+        return property.getIndex().summarize();
+    }
+
+    /**
+     * Rendered with every page of the project, so this only looks at what {@link TaskIndex} keeps track of.
+     */
     public String getIconFileName() {
-        List<BatchTask> tasks = property.getTasks();
-        if (tasks.isEmpty()) return null;
+        if (property.getTaskCount() == 0) return null;
         // Show animated ball icon if a task is running now
-        Run run = project.getLastBuild();
-        BatchRunAction bra = run != null ? run.getAction(BatchRunAction.class) : null;
-        if (bra != null)
-            for (BatchRun br : bra.records)
-                if (br.isRunning())
-                    return br.getBuildStatusUrl();
-        return "gear2.gif";
+        String icon = property.getIndex().getRunningIcon();
+        return icon != null ? icon : "gear2.gif";
     }
 
     public String getDisplayName() {
-        return Messages.BatchTaskAction_DisplayName(property.getTasks().size());
+        return Messages.BatchTaskAction_DisplayName(property.getTaskCount());
     }
 
     public String getUrlName() {
@@ -54,4 +80,261 @@ public class BatchTaskAction implements Action {
     public BatchTask getTask(String name) {
         return property.getTask(name);
     }
+
+    /**
+     * Remote API access.
+     */
+    public Api getApi() {
+        return new ConditionalApi(this, property.getIndex().getRevision());
+    }
+
+    /**
+     * Searches the logs of all the retained task runs for lines containing some text.
+     *
+     * <p>
+     * Matches are streamed back as plain text, one line per match, in the form
+     * "URL-of-run:line-number: line", newest runs first. The response is flushed
+     * after each run so that the caller sees results while older builds are still being scanned.
+     *
+     * <p>
+     * Some regular expressions take exponential time to match, so they take the permission
+     * to configure the project, and no search goes on for longer than {@link #SEARCH_TIMEOUT} seconds.
+     *
+     * @param q
+     *      Text to look for.
+     * @param regex
+     *      Whether {@code q} is a regular expression rather than literal text.
+     * @param task
+     *      If non-empty, only the runs of this task are searched.
+     * @param max
+     *      Maximum number of matching lines to report. Non-positive values mean {@link #MAX_SEARCH_MATCHES}.
+     */
+    public void doSearch(StaplerRequest req, StaplerResponse rsp, @QueryParameter String q, @QueryParameter boolean regex,
+                         @QueryParameter String task, @QueryParameter int max) throws IOException {
+        project.checkPermission(regex ? Item.CONFIGURE : Item.READ);
+
+        if (q == null || q.isEmpty()) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing query parameter 'q'");
+            return;
+        }
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex ? q : Pattern.quote(q));
+        } catch (PatternSyntaxException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (task != null && task.isEmpty()) task = null;
+        if (max <= 0) max = MAX_SEARCH_MATCHES;
+
+        rsp.setContentType("text/plain;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        String rootUrl = Jenkins.get().getRootUrlFromRequest();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SEARCH_TIMEOUT);
+        int found = 0;
+        try {
+            for (Run<?,?> b : project.getBuilds()) {
+                BatchRunAction bra = b.getAction(BatchRunAction.class);
+                if (bra == null) continue;
+                for (BatchRun r : bra.getRecords()) {
+                    if (task != null && !r.taskName.equals(task)) continue;
+                    found += grep(r, pattern, deadline, rootUrl, w, max - found);
+                    if (found >= max) {
+                        w.flush();
+                        return;
+                    }
+                }
+                w.flush();
+            }
+        } catch (SearchTimeout e) {
+            w.println(Messages.BatchTaskAction_SearchTimedOut(SEARCH_TIMEOUT));
+            w.flush();
+        }
+    }
+
+    /**
+     * Writes out the lines of the log of the given run that match the pattern.
+     *
+     * @return number of lines written, at most {@code limit}.
+     */
+    private static int grep(BatchRun r, Pattern pattern, long deadline, String rootUrl, PrintWriter w, int limit) throws IOException {
+        File log = r.getLogFile();
+        if (!log.exists()) return 0;
+
+        int found = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(log), Charset.defaultCharset()))) {
+            String line;
+            for (int n = 1; (line = in.readLine()) != null; n++) {
+                if (pattern.matcher(new Deadline(line, deadline)).find()) {
+                    w.println(rootUrl + r.getUrl() + '/' + ':' + n + ": " + line);
+                    if (++found >= limit) break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Line of a log that stops the search once the deadline is past, even in the middle of matching it.
+     */
+    private static final class Deadline implements CharSequence {
+        private final CharSequence s;
+        private final long deadline;
+
+        Deadline(CharSequence s, long deadline) {
+            this.s = s;
+            this.deadline = deadline;
+        }
+
+        public char charAt(int index) {
+            if (System.nanoTime() - deadline > 0)
+                throw new SearchTimeout();
+            return s.charAt(index);
+        }
+
+        public int length() {
+            return s.length();
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return new Deadline(s.subSequence(start, end), deadline);
+        }
+
+        @Override
+        public String toString() {
+            return s.toString();
+        }
+    }
+
+    private static final class SearchTimeout extends RuntimeException {
+        SearchTimeout() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Streams the history of task runs as CSV, newest builds first, one line per run with
+     * the task, build number, run id, start time (ISO 8601), duration and queue wait (milli-seconds),
+     * result and node ("(built-in)" for the built-in node). Runs still going on are left out.
+     *
+     * <p>
+     * Builds are loaded one at a time and let go of, so this works on long histories.
+     *
+     * @param since
+     *      If positive, only runs that started at or after this time (milli-seconds since the epoch)
+     *      are reported, for incremental pulls. Scanning stops after the last build that started
+     *      before this time, which is where runs since then normally go, so runs explicitly
+     *      started against older builds are not included.
+     */
+    public void doExport(StaplerRequest req, StaplerResponse rsp, @QueryParameter long since) throws IOException {
+        project.checkPermission(Item.READ);
+
+        rsp.setContentType("text/csv;charset=UTF-8");
+        rsp.setHeader("Content-Disposition", "attachment; filename=\"" + project.getName() + "-batch-tasks.csv\"");
+        PrintWriter w = rsp.getWriter();
+        w.println("task,build,id,start,duration,result,node,queueWait");
+
+        for (Run<?,?> b : project.getBuilds()) {
+            BatchRunAction bra = b.getAction(BatchRunAction.class);
+            if (bra != null) {
+                for (BatchRun r : bra.getRecords()) {
+                    if (r.isRunning() || r.getTimeInMillis() < since) continue;
+                    String node = r.getNode();
+                    w.println(String.join(",",
+                            csv(r.taskName),
+                            String.valueOf(b.getNumber()),
+                            String.valueOf(r.id),
+                            Instant.ofEpochMilli(r.getTimeInMillis()).toString(),
+                            String.valueOf(r.getDuration()),
+                            String.valueOf(r.getResult()),
+                            node == null ? "" : csv(node.isEmpty() ? "(built-in)" : node),
+                            node == null ? "" : String.valueOf(r.getQueueWait())));
+                }
+                w.flush();
+            }
+            if (since > 0 && b.getTimeInMillis() < since)
+                break;
+        }
+    }
+
+    /**
+     * Quotes a CSV field if needed.
+     */
+    private static String csv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+            return s;
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Status of one task, as shown in the overview table.
+     */
+    public static final class Summary {
+        private final BatchTask task;
+        private final BatchRun lastRun, lastSuccessfulRun, lastFailedRun;
+        private final BallColor iconColor;
+
+        /*package*/ Summary(BatchTask task, BatchRun lastRun, BatchRun lastSuccessfulRun, BatchRun lastFailedRun, BallColor iconColor) {
+            this.task = task;
+            this.lastRun = lastRun;
+            this.lastSuccessfulRun = lastSuccessfulRun;
+            this.lastFailedRun = lastFailedRun;
+            this.iconColor = iconColor;
+        }
+
+        public BatchTask getTask() {
+            return task;
+        }
+
+        public BatchRun getLastRun() {
+            return lastRun;
+        }
+
+        public BatchRun getLastSuccessfulRun() {
+            return lastSuccessfulRun;
+        }
+
+        public BatchRun getLastFailedRun() {
+            return lastFailedRun;
+        }
+
+        /**
+         * Same as {@link BatchTask#getIconColor()}.
+         */
+        public BallColor getIconColor() {
+            return iconColor;
+        }
+
+        /**
+         * Gets the run whose duration is shown: the last successful one, else the last failed one.
+         */
+        private BatchRun getDurationRun() {
+            return lastSuccessfulRun != null ? lastSuccessfulRun : lastFailedRun;
+        }
+
+        /**
+         * Gets the duration in milli-seconds of the last successful run, else of the last failed run,
+         * or -1 if there's neither.
+         */
+        public long getDuration() {
+            BatchRun r = getDurationRun();
+            return r != null ? r.getDuration() : -1;
+        }
+
+        public String getDurationString() {
+            BatchRun r = getDurationRun();
+            return r != null ? r.getDurationString() : null;
+        }
+    }
+
+    /**
+     * Default cap on the number of lines {@link #doSearch} reports.
+     */
+    public static int MAX_SEARCH_MATCHES = Integer.getInteger(BatchTaskAction.class.getName() + ".maxSearchMatches", 1000);
+
+    /**
+     * Seconds after which {@link #doSearch} gives up.
+     */
+    public static int SEARCH_TIMEOUT = Integer.getInteger(BatchTaskAction.class.getName() + ".searchTimeout", 10);
 }
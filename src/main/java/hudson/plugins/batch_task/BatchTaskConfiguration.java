@@ -0,0 +1,44 @@
+package hudson.plugins.batch_task;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * System-wide settings of batch tasks.
+ *
+ * @see ConcurrencyLimits
+ */
+@Extension
+public class BatchTaskConfiguration extends GlobalConfiguration {
+    /**
+     * Runs of batch tasks of all projects allowed at the same time. 0 for no limit.
+     */
+    private int maxConcurrent;
+
+    public BatchTaskConfiguration() {
+        load();
+    }
+
+    public static BatchTaskConfiguration get() {
+        return ExtensionList.lookupSingleton(BatchTaskConfiguration.class);
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        save();
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        maxConcurrent = Math.max(0, json.optInt("maxConcurrent", 0));
+        save();
+        return true;
+    }
+}
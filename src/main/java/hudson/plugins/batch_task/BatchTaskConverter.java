@@ -0,0 +1,144 @@
+package hudson.plugins.batch_task;
+
+import com.thoughtworks.xstream.converters.basic.AbstractSingleValueConverter;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.listeners.ItemListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists a {@link BatchTask} in the queue as "full project name/task name".
+ * Used when BatchTask is in the {@link Queue} at Hudson shutdown.
+ *
+ * <p>
+ * A queue full of runs of the same few projects resolves the same names over and over,
+ * so projects are remembered by name until an item is created, renamed, moved, updated or deleted.
+ * Runs whose project or task is gone are dropped from the queue, and reported in one summary
+ * rather than one warning per item.
+ */
+final class BatchTaskConverter extends AbstractSingleValueConverter {
+
+    @Override
+    public boolean canConvert(Class klazz) {
+        return BatchTask.class == klazz;
+    }
+
+    @Override
+    public Object fromString(String str) {
+        int idx = str.lastIndexOf('/');
+        if (idx < 0) {
+            dropped("(illegal format) " + str);
+            return null;
+        }
+
+        String projectName = str.substring(0, idx);
+        Job<?, ?> job = resolve(projectName);
+        BatchTaskProperty bp = job != null ? job.getProperty(BatchTaskProperty.class) : null;
+        BatchTask t = bp != null ? bp.getTask(str.substring(idx + 1)) : null;
+        if (t == null)
+            dropped(str);
+        // Queue.load() throws away items whose task comes back null
+        return t;
+    }
+
+    @Override
+    public String toString(Object item) {
+        BatchTask bt = (BatchTask) item;
+        return bt.owner.getFullName() + "/" + bt.name;
+    }
+
+    /**
+     * Project name to project, null if there's no such project.
+     */
+    private static final Map<String, Job<?, ?>> PROJECTS = new HashMap<String, Job<?, ?>>();
+
+    private static Job<?, ?> resolve(String name) {
+        synchronized (PROJECTS) {
+            if (PROJECTS.containsKey(name))
+                return PROJECTS.get(name);
+            Job<?, ?> job = Jenkins.get().getItemByFullName(name, Job.class);
+            PROJECTS.put(name, job);
+            return job;
+        }
+    }
+
+    /**
+     * Entries dropped since the last summary, and how many times each.
+     */
+    private static final Map<String, Integer> DROPPED = new TreeMap<String, Integer>();
+
+    private static void dropped(String entry) {
+        synchronized (DROPPED) {
+            if (DROPPED.isEmpty()) {
+                // report once the queue is done loading
+                Timer.get().schedule(new Runnable() {
+                    public void run() {
+                        reportDropped();
+                    }
+                }, 10, TimeUnit.SECONDS);
+            }
+            Integer n = DROPPED.get(entry);
+            DROPPED.put(entry, n == null ? 1 : n + 1);
+        }
+    }
+
+    private static void reportDropped() {
+        synchronized (DROPPED) {
+            int total = 0;
+            for (int n : DROPPED.values())
+                total += n;
+            LOGGER.log(Level.WARNING, "Dropped {0} queued batch task run(s) whose project or task no longer exists: {1}",
+                    new Object[] {total, DROPPED});
+            DROPPED.clear();
+        }
+    }
+
+    /**
+     * Forgets the remembered projects whenever items change.
+     */
+    @Extension
+    public static final class Invalidator extends ItemListener {
+        private void invalidate() {
+            synchronized (PROJECTS) {
+                PROJECTS.clear();
+            }
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            invalidate();
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            invalidate();
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            invalidate();
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidate();
+        }
+
+        @Override
+        public void onLoaded() {
+            invalidate();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BatchTaskConverter.class.getName());
+}
@@ -0,0 +1,99 @@
+package hudson.plugins.batch_task;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.CauseAction;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.triggers.TimerTrigger.TimerTriggerCause;
+import jenkins.model.Jenkins;
+
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the batch tasks that have a {@linkplain BatchTask#getCronSpec() schedule} when they are due.
+ *
+ * <p>
+ * Every minute, the tasks due in that minute are collected first, then put into the queue
+ * all at once. Like build triggers, a minute missed because the timer ran late is checked
+ * on the next tick, so no scheduled run is lost.
+ */
+@Extension
+public class BatchTaskCron extends PeriodicWork {
+    /**
+     * Start of the next minute to check. Null before the first tick.
+     */
+    private Calendar next;
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    public long getInitialDelay() {
+        // tick shortly after the minute changes
+        return MIN - System.currentTimeMillis() % MIN;
+    }
+
+    @Override
+    protected void doRun() {
+        Calendar now = new GregorianCalendar();
+        if (next == null || now.getTimeInMillis() - next.getTimeInMillis() > MAX_CATCH_UP) {
+            // first tick, or the clock jumped ahead: start over from this minute
+            next = (Calendar) now.clone();
+            next.set(Calendar.SECOND, 0);
+            next.set(Calendar.MILLISECOND, 0);
+        }
+        Set<BatchTask> due = new LinkedHashSet<BatchTask>();
+        while (!next.after(now)) {
+            collect(next, due);
+            next.add(Calendar.MINUTE, 1);
+        }
+        schedule(due);
+    }
+
+    /**
+     * Adds the tasks due in the given minute to the list, once.
+     */
+    /*package*/ static void collect(Calendar minute, Set<BatchTask> due) {
+        for (Job<?, ?> job : Jenkins.get().allItems(Job.class)) {
+            BatchTaskProperty p = job.getProperty(BatchTaskProperty.class);
+            if (p == null) continue;
+            if (job instanceof AbstractProject && ((AbstractProject<?, ?>) job).isDisabled()) continue;
+            if (job.getLastBuild() == null) continue; // nothing to run against
+            for (BatchTask t : p.getTasks())
+                if (t.getCronSpec() != null && !due.contains(t) && t.isDue(minute))
+                    due.add(t);
+        }
+    }
+
+    /**
+     * Puts a run of each task into the queue, in one go.
+     */
+    /*package*/ static void schedule(final Collection<BatchTask> due) {
+        if (due.isEmpty()) return;
+        Queue.withLock(new Runnable() {
+            public void run() {
+                for (BatchTask t : due) {
+                    LOGGER.log(Level.FINE, "Scheduling {0}", t.getFullDisplayName());
+                    t.schedule(new CauseAction(new TimerTriggerCause()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Longest stretch of missed minutes that is caught up on.
+     */
+    private static final long MAX_CATCH_UP = HOUR;
+
+    private static final Logger LOGGER = Logger.getLogger(BatchTaskCron.class.getName());
+}
@@ -12,6 +12,7 @@ import hudson.model.CauseAction;
 import hudson.model.Descriptor;
 import hudson.model.Item;
 import hudson.model.ItemGroup;
+import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.tasks.BuildStepDescriptor;
@@ -59,7 +60,7 @@ public class BatchTaskInvoker extends Notifier {
          * Finds the target {@link BatchTaskProperty}.
          */
         public BatchTaskProperty resolveProperty(ItemGroup context) {
-            AbstractProject<?,?> p = Jenkins.getInstance().getItem(project, context, AbstractProject.class);
+            Job<?,?> p = Jenkins.getInstance().getItem(project, context, Job.class);
             if(p==null)     return null;
             return p.getProperty(BatchTaskProperty.class);
         }
@@ -94,7 +95,7 @@ public class BatchTaskInvoker extends Notifier {
         public boolean invoke(AbstractBuild<?,?> build, BuildListener listener, HashSet<String> seenJobs) {
             PrintStream logger = listener.getLogger();
 
-            AbstractProject<?,?> p = Jenkins.getInstance().getItem(project, build.getProject(), AbstractProject.class);
+            Job<?,?> p = Jenkins.getInstance().getItem(project, build.getProject(), Job.class);
             if(p==null) {
                 listener.error(Messages.BatchTaskInvoker_NoSuchProject(project));
                 return false;
@@ -119,8 +120,7 @@ public class BatchTaskInvoker extends Notifier {
                 seenJobs.add(project);
             }
             logger.println(Messages.BatchTaskInvoker_Invoking(project,task,buildNum));
-            Jenkins.getInstance().getQueue().schedule(taskObj,0,
-                    new CauseAction(new UpstreamCause((Run)build)));
+            taskObj.schedule(new CauseAction(new UpstreamCause((Run)build)));
             return true;
         }
 
@@ -135,7 +135,7 @@ public class BatchTaskInvoker extends Notifier {
                 // when the item is not found, the user should be getting an error from elsewhere.
                 ListBoxModel r = new ListBoxModel();
 
-                AbstractProject<?,?> p = Jenkins.getInstance().getItem(project, context, AbstractProject.class);
+                Job<?,?> p = Jenkins.getInstance().getItem(project, context, Job.class);
                 if(p!=null) {
                     BatchTaskProperty bp = p.getProperty(BatchTaskProperty.class);
                     if(bp!=null) {
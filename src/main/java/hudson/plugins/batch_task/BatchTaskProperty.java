@@ -2,20 +2,33 @@ package hudson.plugins.batch_task;
 
 import edu.umd.cs.findbugs.annotations.Nullable;
 import hudson.Extension;
-import hudson.model.AbstractProject;
+import hudson.Util;
 import hudson.model.Action;
+import hudson.model.Descriptor.FormException;
+import hudson.model.Item;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
+import hudson.model.listeners.ItemListener;
+import hudson.scheduler.CronTabList;
+import hudson.scheduler.Hash;
 import hudson.util.EditDistance;
+import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.verb.POST;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.io.IOException;
 
 /**
@@ -23,10 +36,24 @@ import java.io.IOException;
  *
  * @author Kohsuke Kawaguchi
  */
-public class BatchTaskProperty extends JobProperty<AbstractProject<?,?>> {
+public class BatchTaskProperty extends JobProperty<Job<?,?>> {
 
     private volatile BatchTask[] tasks;
 
+    /**
+     * Runs of all the tasks allowed at the same time. 0 for no limit.
+     *
+     * @see ConcurrencyLimits
+     */
+    private int maxConcurrent;
+
+    private transient TaskIndex index;
+
+    /**
+     * Tasks by name, built on first use.
+     */
+    private transient volatile Map<String, BatchTask> byName;
+
     public BatchTaskProperty(BatchTask... tasks) {
         this.tasks = tasks;
     }
@@ -36,7 +63,7 @@ public class BatchTaskProperty extends JobProperty<AbstractProject<?,?>> {
     }
 
     @Override
-    protected void setOwner(AbstractProject<?, ?> owner) {
+    protected void setOwner(Job<?, ?> owner) {
         super.setOwner(owner);
         for (BatchTask t : tasks) {
             t.owner = owner;
@@ -44,25 +71,78 @@ public class BatchTaskProperty extends JobProperty<AbstractProject<?,?>> {
         }
     }
 
-    public AbstractProject<?,?> getOwner() {
+    public Job<?,?> getOwner() {
         return owner;
     }
 
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+    }
+
+    /*package*/ synchronized TaskIndex getIndex() {
+        if (index == null)
+            index = new TaskIndex(this);
+        return index;
+    }
+
+    /**
+     * Hands what the index knows over to the property that replaces this one,
+     * unless a task was added, whose runs the index may not have come across.
+     */
+    @Override
+    public JobProperty<?> reconfigure(StaplerRequest req, JSONObject form) throws FormException {
+        JobProperty<?> p = super.reconfigure(req, form);
+        if (p instanceof BatchTaskProperty && p != this) {
+            BatchTaskProperty bp = (BatchTaskProperty) p;
+            boolean added = false;
+            for (BatchTask t : bp.tasks)
+                added |= getTask(t.name) == null;
+            synchronized (this) {
+                if (!added && index != null)
+                    bp.index = new TaskIndex(bp, index);
+            }
+        }
+        return p;
+    }
+
     public BatchTask getTask(String name) {
-        for (BatchTask t : tasks)
-            if(t.name.equals(name))
-                return t;
-        return null;
+        Map<String, BatchTask> m = byName;
+        if (m == null) {
+            synchronized (this) {
+                if (byName == null) {
+                    m = new HashMap<String, BatchTask>();
+                    for (BatchTask t : tasks)
+                        if (!m.containsKey(t.name))
+                            m.put(t.name, t);
+                    byName = m;
+                }
+                m = byName;
+            }
+        }
+        return m.get(name);
     }
 
     public List<BatchTask> getTasks() {
         return Collections.unmodifiableList(Arrays.asList(tasks));
     }
 
+    /**
+     * Gets the number of tasks, without the allocation of {@link #getTasks()}.
+     */
+    public int getTaskCount() {
+        return tasks.length;
+    }
+
     public synchronized void removeTask(BatchTask t) throws IOException {
         ArrayList<BatchTask> l = new ArrayList<BatchTask>(Arrays.asList(tasks));
         if(l.remove(t)) {
             tasks = l.toArray(new BatchTask[l.size()]);
+            byName = null;
+            getIndex().invalidate();
             getOwner().save();
         }
     }
@@ -80,7 +160,7 @@ public class BatchTaskProperty extends JobProperty<AbstractProject<?,?>> {
     }
 
     @Override
-    public Collection<? extends Action> getJobActions(AbstractProject<?,?> job) {
+    public Collection<? extends Action> getJobActions(Job<?,?> job) {
         return Collections.singletonList(new BatchTaskAction(job, this));
     }
 
@@ -98,9 +178,15 @@ public class BatchTaskProperty extends JobProperty<AbstractProject<?,?>> {
             load();
         }
 
+        /**
+         * Any kind of job, Pipeline included. Runs work in the workspace the build recorded,
+         * or on its archived artifacts.
+         *
+         * @see BuildWorkspace
+         */
         @Override
         public boolean isApplicable(Class<? extends Job> jobType) {
-            return AbstractProject.class.isAssignableFrom(jobType);
+            return true;
         }
 
         public String getDisplayName() {
@@ -109,10 +195,49 @@ public class BatchTaskProperty extends JobProperty<AbstractProject<?,?>> {
 
         @Override
         public BatchTaskProperty newInstance(@Nullable StaplerRequest req, JSONObject formData) throws FormException {
-            if(req != null && req.getParameter("batch-tasks.on")!=null)
-                return new BatchTaskProperty(req.bindParametersToList(BatchTask.class, "batch-task."));
-            else
+            JSONObject on = formData.optJSONObject("batch-tasks.on");
+            if(req != null && on != null) {
+                BatchTaskProperty p = new BatchTaskProperty(req.bindJSONToList(BatchTask.class, on.get("tasks")));
+                p.setMaxConcurrent(on.optInt("maxConcurrent", 0));
+                return p;
+            } else
                 return null;
         }
+
+        /**
+         * Checks the schedule of a task, the way the schedule of builds is checked.
+         */
+        @Restricted(NoExternalUse.class)
+        @POST
+        public FormValidation doCheckCronSpec(@QueryParameter String value, @QueryParameter String name,
+                                              @AncestorInPath Item item) {
+            if (item == null || !item.hasPermission(Item.CONFIGURE))
+                return FormValidation.ok();
+            if (value == null || value.trim().isEmpty())
+                return FormValidation.ok();
+            try {
+                // hashed like BatchTask.isDue does, so that 'H' reads the same here as when the task is scheduled
+                CronTabList ctl = CronTabList.create(value, Hash.from(item.getFullName() + '/' + Util.fixNull(name).trim()));
+                String msg = ctl.checkSanity();
+                return msg != null ? FormValidation.warning(msg) : FormValidation.ok();
+            } catch (Exception e) { // a syntax error
+                return FormValidation.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Cancels the queued runs of the tasks of a project that is deleted.
+     */
+    @Extension
+    public static final class DeletionListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (!(item instanceof Job)) return;
+            BatchTaskProperty p = ((Job<?, ?>) item).getProperty(BatchTaskProperty.class);
+            if (p == null) return;
+            for (BatchTask t : p.getTasks())
+                t.cancelQueued();
+        }
     }
 }
@@ -0,0 +1,46 @@
+package hudson.plugins.batch_task;
+
+import hudson.Extension;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.QueueSorter;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Lets {@link BatchTask}s with a higher {@link BatchTask#getPriority() priority}
+ * get to the executors ahead of everything else in the queue.
+ *
+ * <p>
+ * Anything that isn't a batch task counts as priority 0, and the sort is stable,
+ * so the queue order is left alone unless some task has a non-zero priority.
+ *
+ * <p>
+ * Jenkins only uses one sorter, the first one by ordinal. This one comes last,
+ * so it only applies when no other sorter is installed, such as the one of the
+ * Priority Sorter plugin, which then decides the order alone and ignores the priority of batch tasks.
+ */
+@Extension(ordinal = -1000)
+public class BatchTaskQueueSorter extends QueueSorter {
+    @Override
+    public void sortBuildableItems(List<BuildableItem> buildables) {
+        for (BuildableItem bi : buildables) {
+            if (priorityOf(bi) != 0) {
+                buildables.sort(BY_PRIORITY);
+                return;
+            }
+        }
+    }
+
+    private static int priorityOf(BuildableItem bi) {
+        if (bi.task instanceof BatchTask)
+            return ((BatchTask) bi.task).getPriority();
+        return 0;
+    }
+
+    private static final Comparator<BuildableItem> BY_PRIORITY = new Comparator<BuildableItem>() {
+        public int compare(BuildableItem lhs, BuildableItem rhs) {
+            return Integer.compare(priorityOf(rhs), priorityOf(lhs));
+        }
+    };
+}
@@ -0,0 +1,278 @@
+package hudson.plugins.batch_task;
+
+import com.google.common.base.Function;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Cause.UpstreamCause;
+import hudson.model.CauseAction;
+import hudson.model.InvisibleAction;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueListener;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pipeline step that triggers a {@link BatchTask}, and by default waits for it to complete.
+ *
+ * <pre>
+ * def r = batchTask project: 'app', task: 'deploy'
+ * echo "deploy took ${r.duration} ms and ended with ${r.result}"
+ * </pre>
+ *
+ * <p>
+ * While waiting, the step holds neither an executor nor a CPS thread;
+ * it is completed by {@link Listener} when the {@link BatchRun} finishes,
+ * or failed by {@link CancellationListener} if the run never gets to start.
+ */
+public class BatchTaskStep extends Step {
+    private final String project;
+    private final String task;
+    private boolean wait = true;
+
+    @DataBoundConstructor
+    public BatchTaskStep(String project, String task) {
+        this.project = project;
+        this.task = task;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getTask() {
+        return task;
+    }
+
+    public boolean isWait() {
+        return wait;
+    }
+
+    @DataBoundSetter
+    public void setWait(boolean wait) {
+        this.wait = wait;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(context, project, task, wait);
+    }
+
+    /**
+     * Marks the run that a waiting step is waiting for.
+     * Never folded into another queued run, since that would leave the step waiting forever.
+     */
+    public static final class WaitingStepAction extends InvisibleAction implements Queue.QueueAction {
+        public final String id;
+
+        WaitingStepAction(String id) {
+            this.id = id;
+        }
+
+        public boolean shouldSchedule(List<Action> actions) {
+            return true;
+        }
+    }
+
+    static final class Execution extends StepExecution {
+        private final String project;
+        private final String task;
+        private final boolean wait;
+        private final String id = UUID.randomUUID().toString();
+
+        Execution(StepContext context, String project, String task, boolean wait) {
+            super(context);
+            this.project = project;
+            this.task = task;
+            this.wait = wait;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            Run<?, ?> run = getContext().get(Run.class);
+            TaskListener listener = getContext().get(TaskListener.class);
+
+            BatchTask t = resolve(run);
+            if (!t.hasBuildPermission())
+                throw new AbortException(Messages.BatchTaskStep_NoPermission(t.getFullDisplayName()));
+
+            CauseAction cause = new CauseAction(new UpstreamCause(run));
+            // the run may be over before this execution can be found among the running ones
+            if (wait) WAITING.put(id, this);
+            Queue.Item item = wait ? t.schedule(cause, new WaitingStepAction(id)) : t.schedule(cause);
+            if (item == null) {
+                WAITING.remove(id);
+                throw new AbortException(Messages.BatchTaskStep_FailedToSchedule(t.getFullDisplayName()));
+            }
+            listener.getLogger().println(Messages.BatchTaskInvoker_Invoking(project, task, ""));
+
+            if (!wait) {
+                getContext().onSuccess(null);
+                return true;
+            }
+            return false;
+        }
+
+        private BatchTask resolve(Run<?, ?> run) throws AbortException {
+            Job<?, ?> p = Jenkins.get().getItem(project, run.getParent(), Job.class);
+            if (p == null)
+                throw new AbortException(Messages.BatchTaskInvoker_NoSuchProject(project));
+            BatchTaskProperty bp = p.getProperty(BatchTaskProperty.class);
+            if (bp == null)
+                throw new AbortException(Messages.BatchTaskInvoker_NoBatchTaskExists(task));
+            BatchTask t = bp.getTask(task);
+            if (t == null) {
+                if (bp.getTaskCount() == 0)
+                    throw new AbortException(Messages.BatchTaskInvoker_NoBatchTaskExists(task));
+                throw new AbortException(Messages.BatchTaskInvoker_NoSuchTask(task, bp.findNearestTask(task).name));
+            }
+            return t;
+        }
+
+        void complete(BatchRun r) {
+            Map<String, Object> result = new HashMap<String, Object>();
+            result.put("result", r.getResult().toString());
+            result.put("duration", r.getDuration());
+            result.put("number", r.getNumber());
+            getContext().onSuccess(result);
+        }
+
+        void cancelled() {
+            getContext().onFailure(new AbortException(Messages.BatchTaskStep_Cancelled(project, task)));
+        }
+
+        /**
+         * Finds the execution waiting with the given id and hands it to the callback.
+         */
+        static void with(final String id, final Function<Execution, Void> callback) {
+            Execution waiting = WAITING.remove(id);
+            if (waiting != null) {
+                callback.apply(waiting);
+                return;
+            }
+            // resumed after a restart
+            StepExecution.applyAll(Execution.class, new Function<Execution, Void>() {
+                public Void apply(Execution e) {
+                    if (e.id.equals(id))
+                        callback.apply(e);
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            WAITING.remove(id);
+            // if we are still in the queue, don't bother running
+            for (Queue.Item item : Jenkins.get().getQueue().getItems()) {
+                WaitingStepAction a = item.getAction(WaitingStepAction.class);
+                if (a != null && a.id.equals(id))
+                    Jenkins.get().getQueue().cancel(item);
+            }
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public String getStatus() {
+            return "waiting for " + project + " » " + task;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Executions waiting for their run since they were started, by id.
+         */
+        private static final Map<String, Execution> WAITING = new ConcurrentHashMap<String, Execution>();
+    }
+
+    /**
+     * Completes the step waiting for the run that just finished.
+     */
+    @Extension
+    public static final class Listener extends BatchRunListener {
+        @Override
+        public void onCompleted(final BatchRun r) {
+            WaitingStepAction a = r.getAction(WaitingStepAction.class);
+            if (a == null) return;
+            Execution.with(a.id, new Function<Execution, Void>() {
+                public Void apply(Execution e) {
+                    e.complete(r);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Fails the step waiting for a run that was cancelled while in the queue,
+     * including when its task or project got deleted.
+     */
+    @Extension
+    public static final class CancellationListener extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (!li.isCancelled()) return;
+            WaitingStepAction a = li.getAction(WaitingStepAction.class);
+            if (a == null) return;
+            Execution.with(a.id, new Function<Execution, Void>() {
+                public Void apply(Execution e) {
+                    e.cancelled();
+                    return null;
+                }
+            });
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+        @Override
+        public String getFunctionName() {
+            return "batchTask";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.BatchTaskStep_DisplayName();
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<Class<?>>(Arrays.asList(Run.class, TaskListener.class));
+        }
+
+        public ListBoxModel doFillTaskItems(@QueryParameter String project, @AncestorInPath Item context) {
+            ListBoxModel r = new ListBoxModel();
+            if (context == null || !context.hasPermission(Item.CONFIGURE)) return r;
+            Job<?,?> p = Jenkins.get().getItem(project, context, Job.class);
+            if (p != null) {
+                BatchTaskProperty bp = p.getProperty(BatchTaskProperty.class);
+                if (bp != null) {
+                    for (BatchTask t : bp.getTasks())
+                        r.add(t.getDisplayName(), t.getName());
+                }
+            }
+            return r;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package hudson.plugins.batch_task;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.actions.WorkspaceAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The node a build ran on and the workspace it used there.
+ *
+ * <p>
+ * Freestyle-type builds record this themselves. Pipeline builds record a workspace
+ * for each {@code node} block, in which case the one allocated last is used.
+ * Finding it means walking the flow graph, so the answer is remembered for completed builds.
+ */
+final class BuildWorkspace {
+    /**
+     * Name of the node, "" for the built-in node.
+     */
+    final String nodeName;
+    /**
+     * Path of the workspace on that node.
+     */
+    final String path;
+
+    private BuildWorkspace(String nodeName, String path) {
+        this.nodeName = nodeName;
+        this.path = path;
+    }
+
+    /**
+     * Gets the node, or null if it no longer exists.
+     */
+    @CheckForNull
+    Node getNode() {
+        Jenkins j = Jenkins.get();
+        return nodeName.isEmpty() ? j : j.getNode(nodeName);
+    }
+
+    /**
+     * Gets the workspace, or null if the node no longer exists or is offline.
+     */
+    @CheckForNull
+    FilePath getWorkspace() {
+        Node n = getNode();
+        return n != null ? n.createPath(path) : null;
+    }
+
+    /**
+     * Finds where the given build ran, or null if it didn't use a workspace or it can't be told.
+     */
+    @CheckForNull
+    static BuildWorkspace of(Run<?, ?> run) {
+        if (run instanceof AbstractBuild) {
+            AbstractBuild<?, ?> b = (AbstractBuild<?, ?>) run;
+            FilePath ws = b.getWorkspace();
+            if (ws == null) return null;
+            return new BuildWorkspace(Util.fixNull(b.getBuiltOnStr()), ws.getRemote());
+        }
+        if (run instanceof FlowExecutionOwner.Executable) {
+            synchronized (RECORDED) {
+                if (RECORDED.containsKey(run))
+                    return RECORDED.get(run);
+            }
+            BuildWorkspace w = scan((FlowExecutionOwner.Executable) run);
+            if (!run.isBuilding()) {
+                synchronized (RECORDED) {
+                    RECORDED.put(run, w);
+                }
+            }
+            return w;
+        }
+        return null;
+    }
+
+    private static BuildWorkspace scan(FlowExecutionOwner.Executable run) {
+        FlowExecutionOwner owner = run.asFlowExecutionOwner();
+        FlowExecution execution = owner != null ? owner.getOrNull() : null;
+        if (execution == null) return null;
+        try {
+            // starts from the heads, so the first one found is the latest
+            for (FlowNode n : new DepthFirstScanner().allNodes(execution)) {
+                WorkspaceAction a = n.getPersistentAction(WorkspaceAction.class);
+                if (a != null)
+                    return new BuildWorkspace(a.getNode(), a.getPath());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the flow graph of " + run, e);
+        }
+        return null;
+    }
+
+    /**
+     * Workspaces of completed Pipeline builds, including the ones that didn't have any.
+     */
+    private static final Map<Run<?, ?>, BuildWorkspace> RECORDED = new WeakHashMap<Run<?, ?>, BuildWorkspace>();
+
+    private static final Logger LOGGER = Logger.getLogger(BuildWorkspace.class.getName());
+}
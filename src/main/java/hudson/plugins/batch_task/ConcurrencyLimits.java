@@ -0,0 +1,85 @@
+package hudson.plugins.batch_task;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.SubTask;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps runs of batch tasks in the queue while too many are going on already:
+ * of the same task, of the tasks of the same project, or of all tasks.
+ *
+ * <p>
+ * Runs are counted from what the executors are doing and what the queue has handed to them,
+ * like the queue itself does for builds, so there is no count to get out of sync.
+ * Durable runs resumed after a restart hold no executor, and aren't counted.
+ *
+ * @see BatchTask#getMaxConcurrent()
+ * @see BatchTaskProperty#getMaxConcurrent()
+ * @see BatchTaskConfiguration#getMaxConcurrent()
+ */
+final class ConcurrencyLimits {
+    private ConcurrencyLimits() {}
+
+    /**
+     * Checks whether one more run of the task would exceed one of the limits.
+     *
+     * @return null if the task may run now.
+     */
+    static CauseOfBlockage check(BatchTask task) {
+        int perTask = task.isConcurrentBuild() ? task.getMaxConcurrent() : 0; // otherwise the queue already runs one at a time
+        int perProject = task.parent != null ? task.parent.getMaxConcurrent() : 0;
+        int global = BatchTaskConfiguration.get().getMaxConcurrent();
+        if (perTask <= 0 && perProject <= 0 && global <= 0)
+            return null;
+
+        Counter c = new Counter(task);
+        for (Computer computer : Jenkins.get().getComputers()) {
+            for (Executor e : computer.getAllExecutors()) {
+                Queue.Executable x = e.getCurrentExecutable();
+                if (x instanceof BatchRun) {
+                    BatchRun r = (BatchRun) x;
+                    c.count(r.getOwner().owner.getParent(), r.taskName);
+                }
+            }
+        }
+        for (Queue.BuildableItem i : Jenkins.get().getQueue().getPendingItems()) {
+            SubTask t = i.task;
+            if (t instanceof BatchTask)
+                c.count(((BatchTask) t).owner, ((BatchTask) t).name);
+        }
+
+        if (perTask > 0 && c.task >= perTask)
+            return CauseOfBlockage.fromMessage(Messages._ConcurrencyLimits_Task(c.task, perTask));
+        if (perProject > 0 && c.project >= perProject)
+            return CauseOfBlockage.fromMessage(Messages._ConcurrencyLimits_Project(c.project, perProject));
+        if (global > 0 && c.all >= global)
+            return CauseOfBlockage.fromMessage(Messages._ConcurrencyLimits_Global(c.all, global));
+        return null;
+    }
+
+    /**
+     * Counts runs going on, by the limit they count towards.
+     * Tasks are matched by project and name, as reconfiguring a project replaces its task objects.
+     */
+    private static final class Counter {
+        private final BatchTask target;
+        int task, project, all;
+
+        Counter(BatchTask target) {
+            this.target = target;
+        }
+
+        void count(Job<?, ?> owner, String name) {
+            all++;
+            if (owner == target.owner) {
+                project++;
+                if (name.equals(target.name))
+                    task++;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package hudson.plugins.batch_task;
+
+import hudson.model.Api;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+/**
+ * {@link Api} that tags its responses with an ETag, and answers a request that comes back
+ * with the same tag in If-None-Match with 304, without exporting anything.
+ *
+ * <p>
+ * The tag is made of a revision number that the exported object bumps whenever its
+ * exported state changes, plus the request (so that {@code tree}, {@code depth} and
+ * the format all count) and the user asking.
+ *
+ * @see TaskIndex#getRevision()
+ * @see HttpCaching#tag(StaplerRequest, long)
+ */
+public class ConditionalApi extends Api {
+    private final long revision;
+
+    public ConditionalApi(Object bean, long revision) {
+        super(bean);
+        this.revision = revision;
+    }
+
+    @Override
+    public void doXml(StaplerRequest req, StaplerResponse rsp,
+                      @QueryParameter String xpath,
+                      @QueryParameter String wrapper,
+                      @QueryParameter String tree,
+                      @QueryParameter int depth) throws IOException, ServletException {
+        if (checkNotModified(req, rsp)) return;
+        super.doXml(req, rsp, xpath, wrapper, tree, depth);
+    }
+
+    @Override
+    public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        if (checkNotModified(req, rsp)) return;
+        super.doJson(req, rsp);
+    }
+
+    @Override
+    public void doPython(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        if (checkNotModified(req, rsp)) return;
+        super.doPython(req, rsp);
+    }
+
+    private boolean checkNotModified(StaplerRequest req, StaplerResponse rsp) {
+        // the answer depends on who asks, so shared caches must not keep it
+        return HttpCaching.checkNotModified(req, rsp, HttpCaching.tag(req, revision), 0, false);
+    }
+}
@@ -0,0 +1,154 @@
+package hudson.plugins.batch_task;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.ChannelClosedException;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Script of a {@link BatchRun} launched detached on the node, through the durable-task machinery.
+ *
+ * <p>
+ * The process keeps running and spooling its output on the node on its own,
+ * and we just poll it for new output and the exit status. This is persisted with the run
+ * while the script is going, so that a restarted Jenkins can pick up where it left off.
+ *
+ * @see BatchTask#isDurable()
+ * @see InFlightRuns
+ */
+final class DurableExecution {
+    private final Controller controller;
+    /**
+     * Name of the node, "" for the built-in node.
+     */
+    private final String node;
+    /**
+     * Directory the script runs in.
+     */
+    private final String dir;
+    /**
+     * True if {@link #dir} is a scratch directory that goes away with the run.
+     */
+    private final boolean scratch;
+
+    private DurableExecution(Controller controller, String node, String dir, boolean scratch) {
+        this.controller = controller;
+        this.node = node;
+        this.dir = dir;
+        this.scratch = scratch;
+    }
+
+    /**
+     * Starts the script in the given directory.
+     */
+    static DurableExecution launch(DurableTask task, EnvVars env, Node node, FilePath dir, boolean scratch,
+                                   Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        Controller c = task.launch(env, dir, launcher, listener);
+        return new DurableExecution(c, node.getNodeName(), dir.getRemote(), scratch);
+    }
+
+    boolean isScratch() {
+        return scratch;
+    }
+
+    /**
+     * Gets the directory the script runs in, or null if the node isn't there right now.
+     */
+    @CheckForNull
+    FilePath getDir() {
+        Node n = getNode();
+        return n != null ? n.createPath(dir) : null;
+    }
+
+    @CheckForNull
+    private Node getNode() {
+        Jenkins j = Jenkins.get();
+        return node.isEmpty() ? j : j.getNode(node);
+    }
+
+    /**
+     * Did a call to the node fail because the connection to it broke, rather than because of the script?
+     */
+    private boolean isDisconnect(IOException e) {
+        Node n = getNode();
+        Computer c = n != null ? n.toComputer() : null;
+        if (c == null || c.isOffline())
+            return true;
+        for (Throwable t = e; t != null; t = t.getCause())
+            if (t instanceof ChannelClosedException || t instanceof EOFException)
+                return true;
+        return false;
+    }
+
+    /**
+     * Copies the output of the script into the sink as it comes, until the script exits.
+     * If the node goes away meanwhile, waits for it to come back.
+     *
+     * <p>
+     * If interrupted, the script is killed, unless Jenkins is shutting down,
+     * in which case it is left running to be picked up again after the restart.
+     *
+     * @param deadline
+     *      Time at which the script gets killed, or 0 for none.
+     * @return the exit status of the script.
+     */
+    int await(OutputStream sink, TaskListener listener, long deadline) throws IOException, InterruptedException {
+        boolean killed = false;
+        boolean disconnected = false;
+        try {
+            while (true) {
+                FilePath ws = getDir();
+                if (ws != null) {
+                    try {
+                        Launcher launcher = ws.createLauncher(listener);
+                        controller.writeLog(ws, sink);
+                        Integer status = controller.exitStatus(ws, launcher, listener);
+                        if (status != null) {
+                            controller.writeLog(ws, sink); // whatever came in between
+                            controller.cleanup(ws);
+                            return status;
+                        }
+                        if (!killed && deadline > 0 && System.currentTimeMillis() >= deadline) {
+                            controller.stop(ws, launcher);
+                            killed = true;
+                        }
+                        disconnected = false;
+                    } catch (IOException e) {
+                        if (!isDisconnect(e))
+                            throw e;
+                        // same as when the node is offline: the script goes on, try again later
+                        if (!disconnected)
+                            listener.getLogger().println(Messages.BatchRun_Disconnected(node.isEmpty() ? "(built-in)" : node));
+                        disconnected = true;
+                    }
+                }
+                sink.flush();
+                Thread.sleep(POLL_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            if (!Jenkins.get().isTerminating()) {
+                FilePath ws = getDir();
+                if (ws != null)
+                    controller.stop(ws, ws.createLauncher(listener));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Milli-seconds between polls of the script for its output and exit status.
+     */
+    static long POLL_INTERVAL = Long.getLong(DurableExecution.class.getName() + ".pollInterval", TimeUnit.SECONDS.toMillis(1));
+}
@@ -0,0 +1,188 @@
+package hudson.plugins.batch_task;
+
+import hudson.model.Item;
+import hudson.model.Job;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Conditional GET support: ETags, Last-Modified, 304 answers, and byte ranges of files.
+ */
+final class HttpCaching {
+    private HttpCaching() {}
+
+    /**
+     * Makes an ETag for a response that depends on the given revision number,
+     * on the request (path and query) and on the user asking.
+     * Revision numbers start over when Jenkins restarts, so the tag also carries a prefix unique to this session.
+     */
+    static String tag(StaplerRequest req, long revision) {
+        int request = Objects.hash(req.getRequestURI(), req.getQueryString(), Jenkins.getAuthentication2().getName());
+        return '"' + SESSION + '-' + Long.toString(revision, 36) + '-' + Integer.toHexString(request) + '"';
+    }
+
+    /**
+     * Sets the validators of the response, and sends 304 if the client already has what it would get.
+     *
+     * @param lastModified
+     *      Time the content last changed, or 0 if it can't be told.
+     * @param shared
+     *      True if the content is the same for everyone, so that proxies may keep it too.
+     * @return true if the response has been sent.
+     */
+    static boolean checkNotModified(StaplerRequest req, StaplerResponse rsp, String etag, long lastModified, boolean shared) {
+        rsp.setHeader("ETag", etag);
+        if (lastModified > 0)
+            rsp.setDateHeader("Last-Modified", lastModified);
+        rsp.setHeader("Cache-Control", shared ? "public, no-cache" : "private, no-cache");
+
+        String inm = req.getHeader("If-None-Match");
+        if (inm != null) {
+            // takes precedence over If-Modified-Since
+            if (!matches(inm, etag)) return false;
+        } else {
+            long ims = getDateHeader(req, "If-Modified-Since");
+            // HTTP dates only have seconds
+            if (lastModified <= 0 || ims < 0 || lastModified / 1000 > ims / 1000) return false;
+        }
+        rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+
+    /**
+     * Can anyone, including anonymous users, read the given job?
+     */
+    static boolean isPublic(Job<?, ?> job) {
+        return job.getACL().hasPermission2(Jenkins.ANONYMOUS2, Item.READ);
+    }
+
+    /**
+     * Serves a file that no longer changes.
+     *
+     * <p>
+     * Supports conditional requests, a single byte range (with If-Range),
+     * and gzip content encoding of full responses when the client accepts it.
+     */
+    static void serveFile(StaplerRequest req, StaplerResponse rsp, File f, String contentType, boolean shared) throws IOException {
+        long length = f.length();
+        long lastModified = f.lastModified();
+        String version = Long.toString(length, 36) + '-' + Long.toString(lastModified, 36);
+        String etag = '"' + version + '"';
+
+        rsp.setContentType(contentType);
+        rsp.setHeader("Accept-Ranges", "bytes");
+        rsp.setHeader("Vary", "Accept-Encoding");
+
+        String range = req.getHeader("Range");
+        String ifRange = req.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] r = parseRange(range, length);
+            if (r != null) {
+                if (checkNotModified(req, rsp, etag, lastModified, shared)) return;
+                if (r[0] >= length || r[0] > r[1]) {
+                    rsp.setHeader("Content-Range", "bytes */" + length);
+                    rsp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                long end = Math.min(r[1], length - 1);
+                rsp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                rsp.setHeader("Content-Range", "bytes " + r[0] + '-' + end + '/' + length);
+                rsp.setHeader("Content-Length", Long.toString(end - r[0] + 1));
+                try (InputStream in = new FileInputStream(f); OutputStream out = rsp.getOutputStream()) {
+                    skipFully(in, r[0]);
+                    copy(in, out, end - r[0] + 1);
+                }
+                return;
+            }
+            // not a range we understand, so serve the whole thing
+        }
+
+        boolean gzip = acceptsGzip(req);
+        // the gzipped bytes are a different representation, so they need a different strong tag
+        if (checkNotModified(req, rsp, gzip ? '"' + version + "-gz\"" : etag, lastModified, shared))
+            return;
+        if (!gzip)
+            rsp.setHeader("Content-Length", Long.toString(length));
+        try (InputStream in = new FileInputStream(f);
+             OutputStream out = gzip ? rsp.getCompressedOutputStream(req) : rsp.getOutputStream()) {
+            copy(in, out, length);
+        }
+    }
+
+    private static boolean matches(String header, String etag) {
+        for (String t : header.split(",")) {
+            t = t.trim();
+            if (t.equals(etag) || t.equals("*")) return true;
+        }
+        return false;
+    }
+
+    private static long getDateHeader(StaplerRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1; // malformed
+        }
+    }
+
+    private static boolean acceptsGzip(StaplerRequest req) {
+        String ae = req.getHeader("Accept-Encoding");
+        return ae != null && ae.contains("gzip");
+    }
+
+    /**
+     * Parses a single byte range.
+     *
+     * @return first and last byte, or null if the header isn't a single byte range.
+     */
+    static long[] parseRange(String header, long length) {
+        Matcher m = RANGE.matcher(header.trim());
+        if (!m.matches()) return null;
+        try {
+            if (m.group(1).isEmpty()) {
+                if (m.group(2).isEmpty()) return null;
+                // suffix: the last n bytes
+                long n = Long.parseLong(m.group(2));
+                return new long[] {Math.max(0, length - n), length - 1};
+            }
+            long first = Long.parseLong(m.group(1));
+            long last = m.group(2).isEmpty() ? length - 1 : Long.parseLong(m.group(2));
+            return new long[] {first, last};
+        } catch (NumberFormatException e) {
+            return null; // too large
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long s = in.skip(n);
+            if (s <= 0) throw new IOException("Unexpected end of file");
+            n -= s;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long n) throws IOException {
+        byte[] buf = new byte[8192];
+        while (n > 0) {
+            int len = in.read(buf, 0, (int) Math.min(buf.length, n));
+            if (len < 0) break;
+            out.write(buf, 0, len);
+            n -= len;
+        }
+    }
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private static final String SESSION = Long.toString(System.currentTimeMillis(), 36);
+}
@@ -0,0 +1,77 @@
+package hudson.plugins.batch_task;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the {@link BatchRun}s whose {@link DurableExecution} is going on,
+ * so that they can be resumed after a restart without scanning every build of every job.
+ */
+final class InFlightRuns {
+    private InFlightRuns() {}
+
+    static synchronized void add(BatchRun r) throws IOException {
+        Set<BatchRunKey> entries = load();
+        if (entries.add(r.getKey()))
+            getFile().write(new ArrayList<BatchRunKey>(entries));
+    }
+
+    static synchronized void remove(BatchRun r) {
+        try {
+            Set<BatchRunKey> entries = load();
+            if (entries.remove(r.getKey()))
+                getFile().write(new ArrayList<BatchRunKey>(entries));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to update " + getFile(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<BatchRunKey> load() throws IOException {
+        XmlFile f = getFile();
+        if (!f.exists()) return new LinkedHashSet<BatchRunKey>();
+        return new LinkedHashSet<BatchRunKey>((List<BatchRunKey>) f.read());
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(Jenkins.XSTREAM, new File(Jenkins.get().getRootDir(), InFlightRuns.class.getName() + ".xml"));
+    }
+
+    /**
+     * Goes back to collecting the output of the runs that were going on when Jenkins went down.
+     * Entries whose run is gone or already done are dropped.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static synchronized void resumeAll() throws IOException {
+        Set<BatchRunKey> entries = load();
+        for (BatchRunKey e : new ArrayList<BatchRunKey>(entries)) {
+            final BatchRun r = e.resolve();
+            if (r == null || !r.isRunning() || !r.isDurable()) {
+                LOGGER.log(Level.FINE, "Not resuming {0}", e);
+                entries.remove(e);
+                continue;
+            }
+            LOGGER.log(Level.INFO, "Resuming {0}", e);
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    r.resume();
+                }
+            });
+        }
+        getFile().write(new ArrayList<BatchRunKey>(entries));
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InFlightRuns.class.getName());
+}
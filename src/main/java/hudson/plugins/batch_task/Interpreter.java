@@ -0,0 +1,143 @@
+package hudson.plugins.batch_task;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.tasks.BatchFile;
+import hudson.tasks.CommandInterpreter;
+import hudson.tasks.Shell;
+import org.jenkinsci.plugins.durabletask.BourneShellScript;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.jenkinsci.plugins.durabletask.PowershellScript;
+import org.jenkinsci.plugins.durabletask.WindowsBatchScript;
+import org.jvnet.localizer.Localizable;
+
+/**
+ * Program that runs the script of a {@link BatchTask}.
+ *
+ * @see BatchTask#getInterpreter()
+ */
+public enum Interpreter {
+    /**
+     * The shell on Unix, cmd.exe on Windows.
+     */
+    AUTO(Messages._Interpreter_Auto()) {
+        @Override
+        CommandInterpreter create(String script, boolean unix) {
+            return unix ? new Shell(script) : new BatchFile(script);
+        }
+
+        @Override
+        DurableTask createDurable(String script, boolean unix) {
+            return unix ? new BourneShellScript(script) : new WindowsBatchScript(script);
+        }
+    },
+    SHELL(Messages._Interpreter_Shell()) {
+        @Override
+        CommandInterpreter create(String script, boolean unix) {
+            return new Shell(script);
+        }
+
+        @Override
+        DurableTask createDurable(String script, boolean unix) {
+            return new BourneShellScript(script);
+        }
+    },
+    BATCH(Messages._Interpreter_Batch()) {
+        @Override
+        CommandInterpreter create(String script, boolean unix) {
+            return new BatchFile(script);
+        }
+
+        @Override
+        DurableTask createDurable(String script, boolean unix) {
+            return new WindowsBatchScript(script);
+        }
+    },
+    POWERSHELL(Messages._Interpreter_PowerShell()) {
+        @Override
+        CommandInterpreter create(String script, boolean unix) {
+            return new ScriptInterpreter(script, ".ps1",
+                    unix ? "pwsh" : "powershell.exe", "-NonInteractive", "-NoProfile", "-ExecutionPolicy", "Bypass", "-File");
+        }
+
+        @Override
+        DurableTask createDurable(String script, boolean unix) {
+            return new PowershellScript(script);
+        }
+    },
+    PYTHON(Messages._Interpreter_Python()) {
+        @Override
+        CommandInterpreter create(String script, boolean unix) {
+            return new ScriptInterpreter(script, ".py", unix ? "python3" : "python");
+        }
+
+        @Override
+        DurableTask createDurable(String script, boolean unix) throws AbortException {
+            if (!unix)
+                throw new AbortException(Messages.Interpreter_NotDurable(getDisplayName()));
+            // the durable shell script runs files starting with an interpreter line directly
+            return new BourneShellScript("#!/usr/bin/env python3\n" + script);
+        }
+    };
+
+    private final Localizable displayName;
+
+    Interpreter(Localizable displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName.toString();
+    }
+
+    /**
+     * Creates what runs the script in a temporary file, the way freestyle builds do.
+     *
+     * @param unix
+     *      Whether the node the script runs on is a Unix one.
+     */
+    abstract CommandInterpreter create(String script, boolean unix);
+
+    /**
+     * Creates what launches the script detached on the node, for {@linkplain BatchTask#isDurable() durable} tasks.
+     *
+     * @param unix
+     *      Whether the node the script runs on is a Unix one.
+     * @throws AbortException
+     *      if scripts of this kind can't be run detached on such a node.
+     */
+    abstract DurableTask createDurable(String script, boolean unix) throws AbortException;
+
+    /**
+     * Runs the script with a program given the path of the script file, for languages
+     * that have no build step of their own in the core.
+     */
+    static final class ScriptInterpreter extends CommandInterpreter {
+        private final String extension;
+        private final String[] program;
+
+        ScriptInterpreter(String script, String extension, String... program) {
+            super(script);
+            this.extension = extension;
+            this.program = program;
+        }
+
+        @Override
+        public String[] buildCommandLine(FilePath script) {
+            String[] cmds = new String[program.length + 1];
+            System.arraycopy(program, 0, cmds, 0, program.length);
+            cmds[program.length] = script.getRemote();
+            return cmds;
+        }
+
+        @Override
+        protected String getContents() {
+            return command;
+        }
+
+        @Override
+        protected String getFileExtension() {
+            return extension;
+        }
+    }
+}
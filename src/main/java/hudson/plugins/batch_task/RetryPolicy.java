@@ -0,0 +1,154 @@
+package hudson.plugins.batch_task;
+
+import hudson.Util;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * When and how often a failed attempt to run the script of a {@link BatchTask} is tried again.
+ *
+ * <p>
+ * Attempts are made within the same run, holding on to the same executor and workspace,
+ * and wait for an exponentially growing delay in between.
+ *
+ * @see BatchTask#getRetry()
+ */
+public final class RetryPolicy {
+    /**
+     * Total number of attempts, including the first one.
+     */
+    private final int maxAttempts;
+    /**
+     * Seconds to wait before the second attempt. Doubled for each attempt after that.
+     */
+    private int backoff;
+    /**
+     * Exit codes worth retrying, separated by spaces or commas. Null for any.
+     */
+    private String exitCodes;
+    /**
+     * Regular expression that the output of a failed attempt must contain to be retried. Null for any.
+     */
+    private String pattern;
+
+    @DataBoundConstructor
+    public RetryPolicy(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public int getBackoff() {
+        return backoff;
+    }
+
+    @DataBoundSetter
+    public void setBackoff(int backoff) {
+        this.backoff = Math.max(0, backoff);
+    }
+
+    public String getExitCodes() {
+        return exitCodes;
+    }
+
+    @DataBoundSetter
+    public void setExitCodes(String exitCodes) {
+        this.exitCodes = Util.fixEmptyAndTrim(exitCodes);
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    @DataBoundSetter
+    public void setPattern(String pattern) {
+        this.pattern = Util.fixEmptyAndTrim(pattern);
+    }
+
+    /**
+     * Is a failed attempt worth trying again?
+     * If both exit codes and a pattern are given, either one matching is enough.
+     *
+     * @param exitCode
+     *      Exit code of the script, or null if it couldn't be launched or the connection to the node broke,
+     *      which is always worth trying again.
+     * @param output
+     *      What the attempt wrote, or the end of it.
+     */
+    boolean shouldRetry(Integer exitCode, String output) {
+        if (exitCode == null) return true;
+        if (exitCodes == null && pattern == null) return true;
+        if (exitCodes != null)
+            for (String c : Util.tokenize(exitCodes, " ,"))
+                if (c.equals(String.valueOf(exitCode)))
+                    return true;
+        if (pattern != null) {
+            try {
+                if (Pattern.compile(pattern, Pattern.MULTILINE).matcher(output).find())
+                    return true;
+            } catch (PatternSyntaxException e) {
+                LOGGER.log(Level.WARNING, "Invalid retry pattern " + pattern, e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the milli-seconds to wait after the given attempt failed, before making the next one.
+     */
+    long getDelay(int attempt) {
+        long delay = TimeUnit.SECONDS.toMillis(backoff) << Math.min(attempt - 1, 20);
+        return Math.min(delay, MAX_DELAY);
+    }
+
+    /**
+     * Keeps the end of what an attempt writes, for matching {@link #pattern} against.
+     */
+    static final class Tail extends OutputStream {
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            buf.write(b);
+            trim();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buf.write(b, off, len);
+            trim();
+        }
+
+        private void trim() {
+            if (buf.size() <= 2 * SIZE) return;
+            byte[] all = buf.toByteArray();
+            buf.reset();
+            buf.write(all, all.length - SIZE, SIZE);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf.toByteArray(), Charset.defaultCharset());
+        }
+
+        private static final int SIZE = 64 * 1024;
+    }
+
+    /**
+     * Longest wait between two attempts.
+     */
+    private static final long MAX_DELAY = TimeUnit.HOURS.toMillis(1);
+
+    private static final Logger LOGGER = Logger.getLogger(RetryPolicy.class.getName());
+}
@@ -0,0 +1,78 @@
+package hudson.plugins.batch_task;
+
+import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Filters the task output and records the sections that the script marks out.
+ *
+ * <p>
+ * A line of the form <tt>::section::NAME</tt> starts a new section (closing the current one, if any),
+ * and <tt>::endsection::</tt> closes the current section. When a section closes, a line reporting
+ * how long it took is added to the log, and the timing is recorded in the {@link BatchRun}.
+ */
+final class SectionMarkerStream extends LineTransformationOutputStream {
+    private final OutputStream out;
+    private final BatchRun run;
+    private final Charset charset;
+
+    /**
+     * Section currently open, or null.
+     */
+    private BatchRun.Section current;
+
+    SectionMarkerStream(OutputStream out, BatchRun run) {
+        this.out = out;
+        this.run = run;
+        this.charset = Charset.defaultCharset();
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        out.write(b, 0, len);
+
+        if (len < START.length()) return;    // too short to be a marker
+        String line = trimEOL(new String(b, 0, len, charset)).trim();
+        if (line.startsWith(START)) {
+            endSection();
+            String name = line.substring(START.length()).trim();
+            if (name.length() > 0)
+                current = run.startSection(name, System.currentTimeMillis());
+        } else if (line.equals(END)) {
+            endSection();
+        }
+    }
+
+    private void endSection() throws IOException {
+        if (current == null) return;
+        run.endSection(current, System.currentTimeMillis());
+        out.write(("[" + current.name + "] took " + Util.getTimeSpanString(current.getDuration()) + "\n").getBytes(charset));
+        current = null;
+    }
+
+    /**
+     * Closes the section that the script left open, if any.
+     */
+    void finish() throws IOException {
+        forceEol();
+        endSection();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    static final String START = "::section::";
+    static final String END = "::endsection::";
+}
@@ -0,0 +1,55 @@
+package hudson.plugins.batch_task;
+
+import hudson.model.Action;
+import hudson.model.InvisibleAction;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue.QueueAction;
+import hudson.model.Run;
+import hudson.model.labels.LabelAssignmentAction;
+import hudson.model.queue.SubTask;
+
+import java.util.List;
+
+/**
+ * Asks a queued {@link BatchTask} run to execute against a specific build
+ * of the project, rather than the last one.
+ *
+ * <p>
+ * Runs that target different builds are kept apart in the queue.
+ * The run goes to the node the workspace of that build is on,
+ * rather than where the last build ran.
+ *
+ * @see BatchTask#createExecutable()
+ */
+public class TargetBuildAction extends InvisibleAction implements QueueAction, LabelAssignmentAction {
+    /**
+     * Number of the build to run against.
+     */
+    public final int number;
+
+    public TargetBuildAction(int number) {
+        this.number = number;
+    }
+
+    public boolean shouldSchedule(List<Action> actions) {
+        for (Action a : actions)
+            if (a instanceof TargetBuildAction)
+                return ((TargetBuildAction) a).number != number;
+        return true;
+    }
+
+    /**
+     * Gets the node of the workspace of the target build. Null if the run doesn't use a workspace,
+     * or that node is gone, in which case the task runs where it normally does, on the archived artifacts.
+     */
+    public Label getAssignedLabel(SubTask task) {
+        if (!(task instanceof BatchTask)) return null;
+        BatchTask t = (BatchTask) task;
+        if (t.isUseArtifacts()) return null;
+        Run<?, ?> b = t.owner.getBuildByNumber(number);
+        BuildWorkspace ws = b != null ? BuildWorkspace.of(b) : null;
+        Node n = ws != null ? ws.getNode() : null;
+        return n != null ? n.getSelfLabel() : null;
+    }
+}
@@ -0,0 +1,97 @@
+package hudson.plugins.batch_task;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.tools.ant.DirectoryScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Computes the key under which the outcome of a run of a {@link BatchTask#isCache() cached} task is remembered.
+ *
+ * <p>
+ * The key covers what the task declares its outcome depends on: the script and its interpreter,
+ * the values of the declared environment variables, and the paths and contents of the declared
+ * input files in the directory the script runs in. Runs with the same key are assumed to succeed
+ * or fail alike.
+ */
+final class TaskCache {
+    private TaskCache() {}
+
+    /**
+     * Computes the key of a run of the task in the given directory with the given environment.
+     */
+    static String key(BatchTask task, EnvVars env, FilePath dir) throws IOException, InterruptedException {
+        MessageDigest md = sha256();
+        update(md, task.getInterpreter().name());
+        update(md, task.script);
+        String variables = task.getCacheVariables();
+        if (variables != null) {
+            // sorted, so that the order they are declared in doesn't matter
+            for (String name : new TreeSet<String>(Arrays.asList(Util.tokenize(variables, " ,")))) {
+                update(md, name);
+                update(md, env.get(name, ""));
+            }
+        }
+        String inputs = task.getCacheInputs();
+        if (inputs != null)
+            update(md, dir.act(new InputDigest(inputs)));
+        return Util.toHexString(md.digest());
+    }
+
+    private static void update(MessageDigest md, String s) {
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // every JVM has SHA-256
+        }
+    }
+
+    /**
+     * Digests the paths and contents of the files matching a glob, on the node that has them.
+     */
+    private static final class InputDigest extends MasterToSlaveFileCallable<String> {
+        private final String glob;
+
+        InputDigest(String glob) {
+            this.glob = glob;
+        }
+
+        public String invoke(File dir, VirtualChannel channel) throws IOException {
+            DirectoryScanner ds = Util.createFileSet(dir, glob).getDirectoryScanner();
+            String[] files = ds.getIncludedFiles();
+            Arrays.sort(files);
+
+            MessageDigest md = sha256();
+            byte[] buf = new byte[8192];
+            for (String f : files) {
+                update(md, f.replace(File.separatorChar, '/'));
+                try (InputStream in = Files.newInputStream(new File(dir, f).toPath())) {
+                    int n;
+                    while ((n = in.read(buf)) >= 0)
+                        md.update(buf, 0, n);
+                }
+                md.update((byte) 0);
+            }
+            return Util.toHexString(md.digest());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,331 @@
+package hudson.plugins.batch_task;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.model.BallColor;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the last, last completed, last successful and last failed run of each task of a {@link BatchTaskProperty},
+ * so that they don't have to be found by walking the build history every time they are asked for.
+ *
+ * <p>
+ * The index is built by a single walk of the history the first time it is needed,
+ * then kept up to date as runs start and complete. Deleting a build throws it away.
+ * It also keeps a revision number that changes whenever a run starts or completes,
+ * which tells clients of the remote API whether anything changed since they last asked.
+ *
+ * <p>
+ * The runs going on right now, for the icon of {@link BatchTaskAction}, are kept by project rather than
+ * in the index, since the property and its index are replaced whenever the project is configured.
+ * What the index learnt is then handed over to the new one.
+ */
+final class TaskIndex {
+    private final BatchTaskProperty property;
+
+    /**
+     * Task name to what we know about its runs. Null until the history is walked.
+     */
+    private Map<String, Entry> entries;
+
+    private volatile long revision = REVISIONS.incrementAndGet();
+
+    TaskIndex(BatchTaskProperty property) {
+        this.property = property;
+    }
+
+    /**
+     * Takes over what the index of the property being replaced knows.
+     */
+    TaskIndex(BatchTaskProperty property, TaskIndex previous) {
+        this.property = property;
+        synchronized (previous) {
+            this.entries = previous.entries;
+        }
+    }
+
+    /**
+     * Gets a number that changes whenever a run of one of the tasks starts or completes.
+     * Numbers are never reused, not even across different properties.
+     */
+    long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Gets the animated status icon of a run going on right now, or null if no run is going on.
+     */
+    String getRunningIcon() {
+        synchronized (RUNNING) {
+            LinkedHashMap<Ref, String> m = RUNNING.get(property.getOwner().getFullName());
+            if (m == null) return null;
+            // the one that started last
+            String icon = null;
+            for (String i : m.values())
+                icon = i;
+            return icon;
+        }
+    }
+
+    synchronized BatchRun getLastRun(String task) {
+        Entry e = getEntries().get(task);
+        return e != null ? resolve(e.last) : null;
+    }
+
+    synchronized BatchRun getLastSuccessfulRun(String task) {
+        Entry e = getEntries().get(task);
+        return e != null ? resolve(e.lastSuccessful) : null;
+    }
+
+    synchronized BatchRun getLastFailedRun(String task) {
+        Entry e = getEntries().get(task);
+        return e != null ? resolve(e.lastFailed) : null;
+    }
+
+    /**
+     * Finds the latest successful run of the task with the given {@linkplain TaskCache cache key}.
+     * Only the runs recorded since the index was built and the ones it walked through are known,
+     * which covers the recent history.
+     */
+    synchronized BatchRun getCachedRun(String task, String cacheKey) {
+        Entry e = getEntries().get(task);
+        if (e == null || e.cached == null) return null;
+        return resolve(e.cached.get(cacheKey));
+    }
+
+    /**
+     * Gets the status of all the tasks in one pass, resolving each build only once.
+     */
+    synchronized List<BatchTaskAction.Summary> summarize() {
+        Map<String, Entry> m = getEntries();
+        Map<Integer, BatchRunAction> builds = new HashMap<Integer, BatchRunAction>();
+        List<BatchTaskAction.Summary> r = new ArrayList<BatchTaskAction.Summary>();
+        for (BatchTask t : property.getTasks()) {
+            Entry e = m.get(t.name);
+            if (e == null) {
+                r.add(new BatchTaskAction.Summary(t, null, null, null, BallColor.GREY));
+                continue;
+            }
+            BatchRun last = resolve(e.last, builds);
+            BallColor color;
+            if (last == null) {
+                color = BallColor.GREY;
+            } else if (!last.isRunning()) {
+                color = last.getIconColor();
+            } else {
+                // same as BatchRun.getIconColor(), without walking back the history
+                BatchRun previous = resolve(e.lastCompleted, builds);
+                color = (previous != null ? previous.getIconColor() : BallColor.GREY_ANIME).anime();
+            }
+            r.add(new BatchTaskAction.Summary(t, last,
+                    resolve(e.lastSuccessful, builds), resolve(e.lastFailed, builds), color));
+        }
+        return r;
+    }
+
+    /**
+     * Takes a run that just started or completed into account.
+     */
+    void update(BatchRun r) {
+        String icon = r.isRunning() ? r.getBuildStatusUrl() : null;
+        String job = property.getOwner().getFullName();
+        Ref ref = new Ref(r);
+        synchronized (RUNNING) {
+            LinkedHashMap<Ref, String> m = RUNNING.get(job);
+            if (icon != null) {
+                if (m == null) RUNNING.put(job, m = new LinkedHashMap<Ref, String>());
+                m.remove(ref);
+                m.put(ref, icon);
+            } else if (m != null) {
+                m.remove(ref);
+                if (m.isEmpty()) RUNNING.remove(job);
+            }
+        }
+        synchronized (this) {
+            if (entries != null)
+                record(entries, r);
+            revision = REVISIONS.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forgets everything, to walk the history again the next time.
+     */
+    synchronized void invalidate() {
+        entries = null;
+        revision = REVISIONS.incrementAndGet();
+    }
+
+    private Map<String, Entry> getEntries() {
+        if (entries == null) {
+            Map<String, Entry> m = new HashMap<String, Entry>();
+            // newer builds first, so we can stop once every task has all it needs
+            for (Run<?, ?> b : property.getOwner().getBuilds()) {
+                BatchRunAction a = b.getAction(BatchRunAction.class);
+                if (a == null) continue;
+                for (BatchRun r : a.getRecords())
+                    record(m, r);
+                if (isComplete(m)) break;
+            }
+            entries = m;
+        }
+        return entries;
+    }
+
+    private boolean isComplete(Map<String, Entry> m) {
+        for (BatchTask t : property.getTasks()) {
+            Entry e = m.get(t.name);
+            if (e == null || e.lastSuccessful == null || e.lastFailed == null)
+                return false;
+        }
+        return true;
+    }
+
+    private static void record(Map<String, Entry> m, BatchRun r) {
+        Entry e = m.get(r.taskName);
+        if (e == null) m.put(r.taskName, e = new Entry());
+        Ref ref = new Ref(r);
+        e.last = Ref.max(e.last, ref);
+        if (!r.isRunning())
+            e.lastCompleted = Ref.max(e.lastCompleted, ref);
+        if (r.getResult() == Result.SUCCESS) {
+            e.lastSuccessful = Ref.max(e.lastSuccessful, ref);
+            String key = r.getCacheKey();
+            if (key != null) {
+                if (e.cached == null) e.cached = new HashMap<String, Ref>();
+                e.cached.put(key, Ref.max(e.cached.get(key), ref));
+            }
+        }
+        if (r.getResult() == Result.FAILURE)
+            e.lastFailed = Ref.max(e.lastFailed, ref);
+    }
+
+    private BatchRun resolve(Ref ref) {
+        if (ref == null) return null;
+        BatchRunAction a = getAction(ref.build);
+        return a != null ? a.getRecord(ref.id) : null;
+    }
+
+    /**
+     * Same as {@link #resolve(Ref)}, remembering the builds looked up in the given map.
+     */
+    private BatchRun resolve(Ref ref, Map<Integer, BatchRunAction> builds) {
+        if (ref == null) return null;
+        BatchRunAction a;
+        if (builds.containsKey(ref.build)) {
+            a = builds.get(ref.build);
+        } else {
+            a = getAction(ref.build);
+            builds.put(ref.build, a);
+        }
+        return a != null ? a.getRecord(ref.id) : null;
+    }
+
+    private BatchRunAction getAction(int build) {
+        Run<?, ?> b = property.getOwner().getBuildByNumber(build);
+        return b != null ? b.getAction(BatchRunAction.class) : null;
+    }
+
+    private static final class Entry {
+        Ref last, lastCompleted, lastSuccessful, lastFailed;
+        /**
+         * Successful runs by their cache key. Null until there's one.
+         */
+        Map<String, Ref> cached;
+    }
+
+    /**
+     * Points to a run without holding on to its build.
+     * Ordered like {@link BatchRun#getPrevious()}: by build, then by id.
+     */
+    private static final class Ref {
+        final int build;
+        final int id;
+
+        Ref(BatchRun r) {
+            this.build = r.getOwner().owner.getNumber();
+            this.id = r.id;
+        }
+
+        static Ref max(Ref a, Ref b) {
+            if (a == null) return b;
+            if (a.build != b.build) return a.build > b.build ? a : b;
+            return a.id >= b.id ? a : b;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Ref)) return false;
+            Ref that = (Ref) o;
+            return build == that.build && id == that.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * build + id;
+        }
+    }
+
+    @CheckForNull
+    private static TaskIndex of(Job<?, ?> job) {
+        BatchTaskProperty p = job.getProperty(BatchTaskProperty.class);
+        return p != null ? p.getIndex() : null;
+    }
+
+    @Extension
+    public static final class Listener extends BatchRunListener {
+        @Override
+        public void onStarted(BatchRun r) {
+            TaskIndex i = of(r.getOwner().owner.getParent());
+            if (i != null) i.update(r);
+        }
+
+        @Override
+        public void onCompleted(BatchRun r) {
+            TaskIndex i = of(r.getOwner().owner.getParent());
+            if (i != null) i.update(r);
+        }
+    }
+
+    @Extension
+    public static final class DeletionListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> r) {
+            TaskIndex i = of(r.getParent());
+            if (i != null) i.invalidate();
+        }
+    }
+
+    /**
+     * Moves the runs going on along with a project that gets renamed or moved.
+     */
+    @Extension
+    public static final class LocationListener extends ItemListener {
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            synchronized (RUNNING) {
+                LinkedHashMap<Ref, String> m = RUNNING.remove(oldFullName);
+                if (m != null) RUNNING.put(newFullName, m);
+            }
+        }
+    }
+
+    /**
+     * Runs going on right now by the full name of their project, with their status icon, in the order they started.
+     */
+    private static final Map<String, LinkedHashMap<Ref, String>> RUNNING = new HashMap<String, LinkedHashMap<Ref, String>>();
+
+    private static final AtomicLong REVISIONS = new AtomicLong();
+}
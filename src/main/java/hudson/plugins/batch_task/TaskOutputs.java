@@ -0,0 +1,122 @@
+package hudson.plugins.batch_task;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the files a {@link BatchRun} declared as its outputs.
+ *
+ * <p>
+ * Each file is stored once per build under <tt>batch-task-outputs/SHA-256</tt> in the build directory,
+ * and the <tt>task-ID-outputs</tt> directory of the run holds hard links to those blobs, so running
+ * a task repeatedly against a build doesn't store the same report over and over.
+ * Where hard links aren't supported, the files are copied instead.
+ * Symbolic links among the outputs are skipped, since what they point to isn't the task's to publish.
+ */
+final class TaskOutputs {
+    private TaskOutputs() {}
+
+    /**
+     * Copies the files matching the glob from the directory the task ran in into {@code target}.
+     *
+     * @return number of files collected, not counting the symbolic links skipped.
+     */
+    static int collect(FilePath dir, String glob, File target) throws IOException, InterruptedException {
+        File blobs = new File(target.getParentFile(), "batch-task-outputs");
+        File staging = new File(target.getPath() + ".tmp");
+        Util.deleteRecursive(staging);
+        try {
+            if (dir.copyRecursiveTo(glob, new FilePath(staging)) == 0) return 0;
+
+            Files.createDirectories(blobs.toPath());
+            List<Path> files = new ArrayList<Path>();
+            try (Stream<Path> s = Files.walk(staging.toPath())) {
+                // a link to, say, a controller file must not be hashed and published as an output
+                s.filter(f -> Files.isRegularFile(f, LinkOption.NOFOLLOW_LINKS)).forEach(files::add);
+            }
+            for (Path f : files) {
+                Path blob = blobs.toPath().resolve(digest(f));
+                try {
+                    Files.move(f, blob);
+                } catch (FileAlreadyExistsException e) {
+                    Files.delete(f); // already have this content
+                }
+                link(blob, target.toPath().resolve(staging.toPath().relativize(f)));
+            }
+            return files.size();
+        } finally {
+            Util.deleteRecursive(staging);
+        }
+    }
+
+    /**
+     * Takes over the outputs an earlier run collected in {@code source} into {@code target},
+     * storing them in the blobs of the build {@code target} belongs to just like {@link #collect} does.
+     *
+     * @return number of files taken over.
+     */
+    static int reuse(File source, File target) throws IOException {
+        if (!source.isDirectory()) return 0;
+        File blobs = new File(target.getParentFile(), "batch-task-outputs");
+        List<Path> files = new ArrayList<Path>();
+        try (Stream<Path> s = Files.walk(source.toPath())) {
+            s.filter(f -> Files.isRegularFile(f, LinkOption.NOFOLLOW_LINKS)).forEach(files::add);
+        }
+        if (files.isEmpty()) return 0;
+
+        Files.createDirectories(blobs.toPath());
+        for (Path f : files) {
+            Path blob = blobs.toPath().resolve(digest(f));
+            if (!Files.exists(blob)) {
+                try {
+                    Files.createLink(blob, f);
+                } catch (FileAlreadyExistsException e) {
+                    // stored concurrently
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(f, blob, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            link(blob, target.toPath().resolve(source.toPath().relativize(f)));
+        }
+        return files.size();
+    }
+
+    private static void link(Path blob, Path dst) throws IOException {
+        Files.createDirectories(dst.getParent());
+        try {
+            Files.createLink(dst, blob);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(blob, dst, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String digest(Path f) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // every JVM has SHA-256
+        }
+        try (InputStream in = new DigestInputStream(Files.newInputStream(f), md)) {
+            byte[] buf = new byte[8192];
+            while (in.read(buf) >= 0)
+                ;
+        }
+        return Util.toHexString(md.digest());
+    }
+}
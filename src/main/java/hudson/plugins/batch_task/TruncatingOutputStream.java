@@ -0,0 +1,54 @@
+package hudson.plugins.batch_task;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Passes through up to a fixed number of bytes, then notes the truncation once
+ * and silently discards the rest.
+ */
+final class TruncatingOutputStream extends FilterOutputStream {
+    private final long limit;
+    private long written;
+    private boolean truncated;
+
+    TruncatingOutputStream(OutputStream out, long limit) {
+        super(out);
+        this.limit = limit;
+    }
+
+    /**
+     * Has anything been discarded?
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (written < limit) {
+            out.write(b);
+            written++;
+        } else {
+            truncate();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int n = (int) Math.min(len, limit - written);
+        if (n > 0) {
+            out.write(b, off, n);
+            written += n;
+        }
+        if (n < len) truncate();
+    }
+
+    private void truncate() throws IOException {
+        if (truncated) return;
+        truncated = true;
+        out.write(("\n[log truncated after " + limit + " bytes]\n").getBytes(Charset.defaultCharset()));
+    }
+}
@@ -1,13 +1,39 @@
 package hudson.plugins.batch_task;
 
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.Action;
 import hudson.model.Computer;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Item;
 import hudson.model.Node;
+import hudson.model.ResourceList;
+import hudson.model.Result;
+import hudson.model.Run;
 import org.junit.Rule;
 
 import hudson.model.FreeStyleProject;
+import hudson.tasks.ArtifactArchiver;
+import hudson.tasks.Shell;
+import jenkins.model.Jenkins;
 
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
+import org.junit.Assume;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
 
 public class BatchRunTest {
 
@@ -31,4 +57,430 @@ public class BatchRunTest {
         // now this should fail
         r.jenkins.getQueue().schedule(batchTask, 0).getFuture().get();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSections() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject();
+        BatchTask task = new BatchTask("test", "echo ::section::compile\necho ::section::package\necho done\n");
+        p.addProperty(new BatchTaskProperty(task));
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+
+        BatchRun run = task.getLastRun();
+        List<BatchRun.Section> sections = run.getSections();
+        assertEquals(2, sections.size());
+        assertEquals("compile", sections.get(0).name);
+        assertEquals("package", sections.get(1).name);
+        for (BatchRun.Section s : sections)
+            assertFalse(s.name + " should be closed", s.isRunning());
+        String log = Util.loadFile(run.getLogFile());
+        assertTrue(log, log.contains("[compile] took"));
+        assertTrue(log, log.contains("[package] took"));
+    }
+
+    @Test
+    public void testLogSizeLimit() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject();
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            script.append("echo line-").append(i).append("-padding-padding-padding\n");
+        BatchTask task = new BatchTask("test", script.toString());
+        task.setLogSizeLimit(1);
+        p.addProperty(new BatchTaskProperty(task));
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+
+        BatchRun run = task.getLastRun();
+        assertEquals(Result.SUCCESS, run.getResult());
+        String log = Util.loadFile(run.getLogFile());
+        assertTrue(log, log.contains("[log truncated after 1024 bytes]"));
+        assertFalse(log, log.contains("line-199-"));
+    }
+
+    @Test
+    public void testRunAgainstEarlierBuild() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.getBuildersList().add(new Shell("echo v$BUILD_NUMBER > version.txt"));
+        p.getPublishersList().add(new ArtifactArchiver("version.txt"));
+        BatchTask task = new BatchTask("test", "cat version.txt\n");
+        p.addProperty(new BatchTaskProperty(task));
+        FreeStyleBuild b1 = r.buildAndAssertSuccess(p);
+        FreeStyleBuild b2 = r.buildAndAssertSuccess(p);
+
+        // the workspace now belongs to #2, so this has to run on the artifacts of #1
+        r.jenkins.getQueue().schedule2(task, 0, Collections.<Action>singletonList(new TargetBuildAction(1)))
+                .getItem().getFuture().get();
+        assertNull(b2.getAction(BatchRunAction.class));
+        BatchRun run = b1.getAction(BatchRunAction.class).getRecord(1);
+        assertEquals(Result.SUCCESS, run.getResult());
+        String log = Util.loadFile(run.getLogFile());
+        assertTrue(log, log.contains("v1"));
+    }
+
+    /**
+     * A run against an earlier build goes to the workspace of that build, wherever the last build ran.
+     */
+    @Test
+    public void testRunAgainstEarlierBuildOnOtherNode() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        Node agent = r.createOnlineSlave();
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.getBuildersList().add(new Shell("echo v$BUILD_NUMBER > version.txt"));
+        BatchTask task = new BatchTask("test", "cat version.txt\n");
+        p.addProperty(new BatchTaskProperty(task));
+        p.setAssignedNode(agent);
+        FreeStyleBuild b1 = r.buildAndAssertSuccess(p);
+        p.setAssignedLabel(r.jenkins.getSelfLabel());
+        r.buildAndAssertSuccess(p);
+        assertEquals("1-1", task.getNextBuildNumber(b1));
+        assertEquals("2-1", task.getNextBuildNumber());
+
+        // no artifacts, so this only works in the workspace of #1
+        r.jenkins.getQueue().schedule2(task, 0, Collections.<Action>singletonList(new TargetBuildAction(1)))
+                .getItem().getFuture().get();
+        BatchRun run = b1.getAction(BatchRunAction.class).getRecord(1);
+        assertEquals(Result.SUCCESS, run.getResult());
+        assertEquals(agent.getNodeName(), run.getNode());
+        assertTrue(Util.loadFile(run.getLogFile()).contains("v1"));
+    }
+
+    @Test
+    public void testUseArtifacts() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.getBuildersList().add(new Shell("echo from-artifact > a.txt; echo from-workspace > b.txt"));
+        p.getPublishersList().add(new ArtifactArchiver("a.txt"));
+        BatchTask task = new BatchTask("test", "cat a.txt\nls\n");
+        task.setUseArtifacts(true);
+        p.addProperty(new BatchTaskProperty(task));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+        assertNull(task.getResourceList().getConflict(new ResourceList().w(p.getWorkspaceResource())));
+
+        // run twice so that the second one comes from the cache
+        for (int i = 0; i < 2; i++) {
+            r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+            BatchRun run = task.getLastRun();
+            assertEquals(Result.SUCCESS, run.getResult());
+            String log = Util.loadFile(run.getLogFile());
+            assertTrue(log, log.contains("from-artifact"));
+            assertFalse(log, log.contains("b.txt"));
+        }
+        // the hashes of the artifacts are kept with the build
+        String digests = Util.loadFile(new File(b.getRootDir(), ArtifactStager.DIGESTS));
+        assertTrue(digests, digests.matches("[0-9a-f]{64} a\\.txt\n"));
+    }
+
+    @Test
+    public void testOutputs() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        FreeStyleProject p = r.createFreeStyleProject();
+        BatchTask task = new BatchTask("test", "mkdir -p out; echo report > out/report.txt\n");
+        task.setOutputs("out/*.txt");
+        p.addProperty(new BatchTaskProperty(task));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+
+        for (int i = 0; i < 2; i++) {
+            r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+            BatchRun run = task.getLastRun();
+            assertTrue(run.getHasOutputs());
+            assertEquals("report\n", Util.loadFile(new File(run.getOutputsDir(), "out/report.txt")));
+        }
+        // same content is stored once
+        assertEquals(1, new File(b.getRootDir(), "batch-task-outputs").list().length);
+
+        String served = r.createWebClient().goTo(task.getLastRun().getUrl() + "/outputs/out/report.txt", "text/plain")
+                .getWebResponse().getContentAsString();
+        assertEquals("report\n", served);
+    }
+
+    /**
+     * A symbolic link among the outputs must not publish what it points to.
+     */
+    @Test
+    public void testOutputsSkipSymlinks() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        FreeStyleProject p = r.createFreeStyleProject();
+        BatchTask task = new BatchTask("test", "mkdir -p out; echo report > out/report.txt; ln -s /etc/passwd out/passwd.txt\n");
+        task.setOutputs("out/*.txt");
+        p.addProperty(new BatchTaskProperty(task));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun run = task.getLastRun();
+
+        assertEquals("report\n", Util.loadFile(new File(run.getOutputsDir(), "out/report.txt")));
+        assertFalse(new File(run.getOutputsDir(), "out/passwd.txt").exists());
+        assertEquals(1, new File(b.getRootDir(), "batch-task-outputs").list().length);
+    }
+
+    /**
+     * Output files take the permission to see artifacts.
+     */
+    @Test
+    public void testOutputsPermission() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        FreeStyleProject p = r.createFreeStyleProject();
+        BatchTask task = new BatchTask("test", "mkdir -p out; echo report > out/report.txt\n");
+        task.setOutputs("out/*.txt");
+        p.addProperty(new BatchTaskProperty(task));
+        r.buildAndAssertSuccess(p);
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun run = task.getLastRun();
+
+        Run.ARTIFACTS.setEnabled(true);
+        try {
+            r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+            r.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                    .grant(Jenkins.READ, Item.READ).everywhere().to("reader", "alice")
+                    .grant(Run.ARTIFACTS).everywhere().to("alice"));
+
+            JenkinsRule.WebClient wc = r.createWebClient().login("reader");
+            wc.setThrowExceptionOnFailingStatusCode(false);
+            assertEquals(403, wc.getPage(new URL(r.getURL(), run.getUrl() + "/outputs/out/report.txt"))
+                    .getWebResponse().getStatusCode());
+            assertFalse(wc.goTo(run.getUrl()).getWebResponse().getContentAsString().contains("outputs/"));
+
+            wc = r.createWebClient().login("alice");
+            assertTrue(wc.goTo(run.getUrl()).getWebResponse().getContentAsString().contains("outputs/"));
+            assertEquals("report\n", wc.goTo(run.getUrl() + "/outputs/out/report.txt", "text/plain")
+                    .getWebResponse().getContentAsString());
+        } finally {
+            Run.ARTIFACTS.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        WorkflowJob p = r.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("node { writeFile file: 'left.txt', text: 'by-pipeline' }", true));
+        BatchTask task = new BatchTask("test", "cat left.txt\necho $TASK_ID\n");
+        p.addProperty(new BatchTaskProperty(task));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        assertEquals(r.jenkins, task.getLastBuiltOn());
+
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun run = b.getAction(BatchRunAction.class).getRecord(1);
+        assertEquals(Result.SUCCESS, run.getResult());
+        String log = Util.loadFile(run.getLogFile());
+        assertTrue(log, log.contains("by-pipeline"));
+        assertTrue(log, log.contains(b.getNumber() + "-1"));
+    }
+
+    @Test
+    public void testConsoleText() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject();
+        BatchTask task = new BatchTask("test", "echo 0123456789");
+        p.addProperty(new BatchTaskProperty(task));
+        r.buildAndAssertSuccess(p);
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun run = task.getLastRun();
+        String log = Util.loadFile(run.getLogFile());
+
+        JenkinsRule.WebClient wc = r.createWebClient();
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        URL url = new URL(r.getURL(), run.getUrl() + "/consoleText");
+        WebResponse full = wc.getPage(url).getWebResponse();
+        assertEquals(200, full.getStatusCode());
+        assertEquals(log, full.getContentAsString());
+        assertNotNull(full.getResponseHeaderValue("Last-Modified"));
+
+        WebRequest conditional = new WebRequest(url);
+        conditional.setAdditionalHeader("If-None-Match", full.getResponseHeaderValue("ETag"));
+        assertEquals(304, wc.getPage(conditional).getWebResponse().getStatusCode());
+
+        WebRequest range = new WebRequest(url);
+        range.setAdditionalHeader("Range", "bytes=0-3");
+        WebResponse part = wc.getPage(range).getWebResponse();
+        assertEquals(206, part.getStatusCode());
+        assertEquals(log.substring(0, 4), part.getContentAsString());
+        assertEquals("bytes 0-3/" + run.getLogFile().length(), part.getResponseHeaderValue("Content-Range"));
+    }
+
+    /**
+     * Verify records saved with a calendar timestamp by older versions still load.
+     */
+    @Test
+    public void testOldTimestampFormat() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("old");
+        BatchTask task = new BatchTask("test", "echo hello");
+        p.addProperty(new BatchTaskProperty(task));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        long start = task.getLastRun().getTimeInMillis();
+        assertSame("test", task.getLastRun().taskName);
+
+        File xml = new File(b.getRootDir(), "build.xml");
+        String s = Files.readString(xml.toPath());
+        String current = "<startTime>" + start + "</startTime>";
+        assertTrue(s, s.contains(current));
+        Files.writeString(xml.toPath(), s.replace(current,
+                "<timestamp><time>" + start + "</time><timezone>UTC</timezone></timestamp>"));
+        r.jenkins.reload();
+
+        p = r.jenkins.getItemByFullName("old", FreeStyleProject.class);
+        BatchRun run = p.getBuildByNumber(1).getAction(BatchRunAction.class).getRecord(1);
+        assertEquals(start, run.getTimeInMillis());
+        assertEquals("test", run.taskName);
+    }
+
+    /**
+     * Each of the notices on the page of a run shows up on its own.
+     */
+    @Test
+    public void testTimedOutPage() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("slow");
+        BatchTask task = new BatchTask("test", "echo hello");
+        p.addProperty(new BatchTaskProperty(task));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+
+        File xml = new File(b.getRootDir(), "build.xml");
+        String s = Files.readString(xml.toPath());
+        assertTrue(s, s.contains("<timedOut>false</timedOut>"));
+        Files.writeString(xml.toPath(), s.replace("<timedOut>false</timedOut>", "<timedOut>true</timedOut>"));
+        r.jenkins.reload();
+
+        p = r.jenkins.getItemByFullName("slow", FreeStyleProject.class);
+        BatchRun run = p.getBuildByNumber(1).getAction(BatchRunAction.class).getRecord(1);
+        assertTrue(run.isTimedOut());
+        String page = r.createWebClient().goTo(run.getUrl()).asNormalizedText();
+        assertTrue(page, page.contains("took longer than the timeout of the task."));
+        assertFalse(page, page.contains("inputs were the same"));
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("keyed");
+        BatchTask task = new BatchTask("test", "echo hello");
+        p.addProperty(new BatchTaskProperty(task));
+        r.buildAndAssertSuccess(p);
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun run = task.getLastRun();
+
+        BatchRunKey key = run.getKey();
+        assertEquals(new BatchRunKey("keyed", 1, 1), key);
+        assertEquals(new BatchRunKey("keyed", 1, 1).hashCode(), key.hashCode());
+        assertEquals("keyed #1-1", key.toString());
+        assertSame(run, key.resolve());
+        assertNull(new BatchRunKey("keyed", 1, 2).resolve());
+    }
+
+    @Test
+    public void testPythonInterpreter() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        Assume.assumeTrue(isOnPath("python3"));
+        FreeStyleProject p = r.createFreeStyleProject();
+        BatchTask task = new BatchTask("test", "import os\nprint('task ' + os.environ['TASK_ID'])\n");
+        task.setInterpreter(Interpreter.PYTHON);
+        p.addProperty(new BatchTaskProperty(task));
+        r.buildAndAssertSuccess(p);
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+
+        BatchRun run = task.getLastRun();
+        assertEquals(Result.SUCCESS, run.getResult());
+        String log = Util.loadFile(run.getLogFile());
+        assertTrue(log, log.contains("task 1-1"));
+    }
+
+    private static boolean isOnPath(String program) {
+        try {
+            return new ProcessBuilder(program, "--version").start().waitFor() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.getBuildersList().add(new Shell("echo one > input.txt"));
+        BatchTask task = new BatchTask("test", "echo ran-$TASK_ID; cat input.txt\n");
+        task.setCache(true);
+        task.setCacheInputs("*.txt");
+        task.setCacheVariables("MODE");
+        p.addProperty(new BatchTaskProperty(task));
+        r.buildAndAssertSuccess(p);
+
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun first = task.getLastRun();
+        assertFalse(first.isCacheHit());
+        assertNotNull(first.getCacheKey());
+
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun second = task.getLastRun();
+        assertEquals(Result.SUCCESS, second.getResult());
+        assertTrue(second.isCacheHit());
+        assertEquals(first, second.getCachedFrom());
+        assertEquals(first.getCacheKey(), second.getCacheKey());
+        String log = Util.loadFile(second.getLogFile());
+        assertTrue(log, log.contains("ran-1-1"));
+        assertFalse(log, log.contains("ran-1-2"));
+        String page = r.createWebClient().goTo(second.getUrl()).asNormalizedText();
+        assertTrue(page, page.contains("inputs were the same as those of an earlier successful run"));
+        assertFalse(page, page.contains("took longer than the timeout"));
+
+        // changing an input runs the script again
+        p.getSomeWorkspace().child("input.txt").write("two", "UTF-8");
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun third = task.getLastRun();
+        assertFalse(third.isCacheHit());
+        assertTrue(Util.loadFile(third.getLogFile()).contains("ran-1-3"));
+    }
+
+    /**
+     * Outputs taken over from a cache hit go through the blobs of the build like collected ones.
+     */
+    @Test
+    public void testCacheOutputs() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.getBuildersList().add(new Shell("echo one > input.txt"));
+        BatchTask task = new BatchTask("test", "mkdir -p out; echo report > out/report.txt\n");
+        task.setCache(true);
+        task.setCacheInputs("*.txt");
+        task.setOutputs("out/*.txt");
+        p.addProperty(new BatchTaskProperty(task));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun second = task.getLastRun();
+        assertTrue(second.isCacheHit());
+        assertEquals("report\n", Util.loadFile(new File(second.getOutputsDir(), "out/report.txt")));
+        assertEquals(1, new File(b.getRootDir(), "batch-task-outputs").list().length);
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        FreeStyleProject p = r.createFreeStyleProject();
+        BatchTask task = new BatchTask("test",
+                "if [ -f tried ]; then echo fine; else touch tried; echo flaky; exit 3; fi\n");
+        RetryPolicy retry = new RetryPolicy(3);
+        retry.setExitCodes("2, 3");
+        task.setRetry(retry);
+        p.addProperty(new BatchTaskProperty(task));
+        r.buildAndAssertSuccess(p);
+
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun run = task.getLastRun();
+        assertEquals(Result.SUCCESS, run.getResult());
+        List<BatchRun.Attempt> attempts = run.getAttempts();
+        assertEquals(2, attempts.size());
+        assertEquals(Integer.valueOf(3), attempts.get(0).getExitCode());
+        assertEquals(Integer.valueOf(0), attempts.get(1).getExitCode());
+        String log = Util.loadFile(run.getLogFile());
+        assertTrue(log, log.contains("flaky"));
+        assertTrue(log, log.contains("fine"));
+
+        // other exit codes are not retried
+        retry.setExitCodes("2");
+        p.getSomeWorkspace().child("tried").delete();
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        run = task.getLastRun();
+        assertEquals(Result.FAILURE, run.getResult());
+        assertEquals(1, run.getAttempts().size());
+    }
+}
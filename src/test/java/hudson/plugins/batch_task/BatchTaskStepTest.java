@@ -0,0 +1,80 @@
+package hudson.plugins.batch_task;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.Result;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchTaskStepTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void testWait() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("app");
+        p.addProperty(new BatchTaskProperty(new BatchTask("deploy", "echo deploying")));
+        r.buildAndAssertSuccess(p);
+
+        WorkflowJob job = r.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition(
+                "def r = batchTask project: 'app', task: 'deploy'\n" +
+                "echo \"result=${r.result} number=${r.number}\"", true));
+        WorkflowRun b = r.buildAndAssertSuccess(job);
+        r.assertLogContains("result=SUCCESS number=1", b);
+        assertNotNull(p.getProperty(BatchTaskProperty.class).getTask("deploy").getLastBuild());
+    }
+
+    @Test
+    public void testCancelled() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("app");
+        BatchTask task = new BatchTask("deploy", "echo deploying");
+        p.addProperty(new BatchTaskProperty(task));
+        r.buildAndAssertSuccess(p);
+        // nothing to run the task on, so it stays in the queue
+        r.jenkins.setNumExecutors(0);
+
+        WorkflowJob job = r.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("batchTask project: 'app', task: 'deploy'", true));
+        WorkflowRun b = job.scheduleBuild2(0).waitForStart();
+        Queue q = r.jenkins.getQueue();
+        List<Queue.Item> items;
+        while ((items = q.getItems(task)).isEmpty())
+            Thread.sleep(100);
+        q.cancel(items.get(0));
+
+        r.assertBuildStatus(Result.FAILURE, r.waitForCompletion(b));
+        r.assertLogContains("app - deploy was cancelled before it started", b);
+    }
+
+    @Test
+    public void testNoSuchTask() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("app");
+        p.addProperty(new BatchTaskProperty(new BatchTask("deploy", "echo deploying")));
+
+        WorkflowJob job = r.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("batchTask project: 'app', task: 'deplyo'", true));
+        WorkflowRun b = r.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0));
+        r.assertLogContains("Perhaps you meant deploy", b);
+    }
+
+    @Test
+    public void testNoTasks() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("app");
+        p.addProperty(new BatchTaskProperty());
+
+        WorkflowJob job = r.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("batchTask project: 'app', task: 'deploy'", true));
+        WorkflowRun b = r.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0));
+        r.assertLogContains("no batch tasks exist at all", b);
+    }
+}
@@ -23,23 +23,50 @@
  */
 package hudson.plugins.batch_task;
 
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
 import org.htmlunit.html.HtmlPage;
 
 import hudson.Functions;
 import hudson.Util;
+import hudson.model.Action;
 import hudson.model.Cause.UpstreamCause;
 import hudson.model.Cause.UserCause;
 import hudson.model.CauseAction;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersAction;
 import hudson.model.Queue;
 import hudson.model.Result;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.triggers.TimerTrigger;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.junit.Assume;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 
@@ -127,4 +154,384 @@ public class BatchTaskTest {
         assertEquals("Cause type", UpstreamCause.class.getName(),
                 ca.getCauses().get(0).getClass().getName());
     }
+
+    /**
+     * Verify the log search endpoint reports matching lines with a link to the run.
+     */
+    @Test
+    public void testSearch() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("search");
+        BatchTask task = new BatchTask("test", "echo needle-in-haystack\n");
+        p.addProperty(new BatchTaskProperty(task));
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+
+        JenkinsRule.WebClient wc = r.createWebClient();
+        String hits = wc.goTo(p.getUrl() + "batchTasks/search?q=needle-in-&task=test", "text/plain")
+                .getWebResponse().getContentAsString();
+        assertTrue("Expected a match in " + hits, hits.contains(p.getUrl() + "1/batchTasks/1/:"));
+        String misses = wc.goTo(p.getUrl() + "batchTasks/search?q=no-such-text", "text/plain")
+                .getWebResponse().getContentAsString();
+        assertEquals("", misses.trim());
+        // literal unless asked otherwise
+        String literal = wc.goTo(p.getUrl() + "batchTasks/search?q=needle-in-.*", "text/plain")
+                .getWebResponse().getContentAsString();
+        assertEquals("", literal.trim());
+        String regex = wc.goTo(p.getUrl() + "batchTasks/search?q=needle-in-.*&regex=true", "text/plain")
+                .getWebResponse().getContentAsString();
+        assertTrue("Expected a match in " + regex, regex.contains(p.getUrl() + "1/batchTasks/1/:"));
+
+        // regular expressions take more than reading the project
+        r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+        r.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ, Item.READ).everywhere().to("reader"));
+        wc = r.createWebClient().login("reader");
+        wc.goTo(p.getUrl() + "batchTasks/search?q=needle", "text/plain");
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        assertEquals(403, wc.getPage(new URL(r.getURL(), p.getUrl() + "batchTasks/search?q=needle&regex=true"))
+                .getWebResponse().getStatusCode());
+    }
+
+    /**
+     * A search that takes too long stops, however costly the expression is.
+     */
+    @Test
+    public void testSearchTimeout() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("search");
+        BatchTask task = new BatchTask("test", "echo aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!\n");
+        p.addProperty(new BatchTaskProperty(task));
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+
+        int timeout = BatchTaskAction.SEARCH_TIMEOUT;
+        BatchTaskAction.SEARCH_TIMEOUT = 1;
+        try {
+            String out = r.createWebClient().goTo(p.getUrl() + "batchTasks/search?q=%28a%2B%29%2B%24&regex=true", "text/plain")
+                    .getWebResponse().getContentAsString();
+            assertTrue(out, out.contains("stopped after 1 seconds"));
+        } finally {
+            BatchTaskAction.SEARCH_TIMEOUT = timeout;
+        }
+    }
+
+    /**
+     * Verify task settings survive a round trip through the configuration form.
+     */
+    @Test
+    public void testConfigRoundtrip() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("config");
+        BatchTask a = new BatchTask("a", "echo a");
+        a.setTimeout(5);
+        a.setLogSizeLimit(64);
+        a.setInterpreter(Interpreter.PYTHON);
+        p.addProperty(new BatchTaskProperty(a, new BatchTask("b", "echo b")));
+        r.configRoundtrip(p);
+
+        BatchTaskProperty bp = p.getProperty(BatchTaskProperty.class);
+        assertNotNull(bp);
+        assertEquals(2, bp.getTasks().size());
+        BatchTask a2 = bp.getTask("a");
+        assertEquals("echo a", a2.script);
+        assertEquals(5, a2.getTimeout());
+        assertEquals(64, a2.getLogSizeLimit());
+        assertEquals(Interpreter.PYTHON, a2.getInterpreter());
+        assertEquals(0, bp.getTask("b").getTimeout());
+        assertEquals(Interpreter.AUTO, bp.getTask("b").getInterpreter());
+    }
+
+    /**
+     * Verify repeated triggers within the quiet period fold into one queued run.
+     */
+    @Test
+    public void testQuietPeriodFoldsTriggers() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("debounce");
+        BatchTask task = new BatchTask("test", "echo hello\n");
+        task.setQuietPeriod(600);
+        p.addProperty(new BatchTaskProperty(task));
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+
+        JenkinsRule.WebClient wc = r.createWebClient();
+        TestHelper.assertPost(wc, p.getUrl() + "batchTasks/task/test/execute", null, null);
+        TestHelper.assertPost(wc, p.getUrl() + "batchTasks/task/test/execute", null, null);
+
+        Queue q = r.jenkins.getQueue();
+        assertEquals(1, q.getItems(task).size());
+        CauseAction ca = q.getItem(task).getAction(CauseAction.class);
+        assertEquals(Integer.valueOf(2), ca.getCauseCounts().values().iterator().next());
+        q.cancel(task);
+    }
+
+    /**
+     * Verify the limit on runs of the tasks of a project keeps further runs in the queue.
+     */
+    @Test
+    public void testProjectConcurrencyLimit() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("limited");
+        BatchTask slow = new BatchTask("slow", Functions.isWindows() ? "ping -n 4 127.0.0.1 > nul" : "sleep 3");
+        BatchTask other = new BatchTask("other", "echo other");
+        BatchTaskProperty bp = new BatchTaskProperty(slow, other);
+        bp.setMaxConcurrent(1);
+        p.addProperty(bp);
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        assertNull(other.getCauseOfBlockage());
+
+        Queue.Item item = r.jenkins.getQueue().schedule(slow, 0);
+        item.getFuture().waitForStart();
+        String why = other.getWhyBlocked();
+        assertNotNull(why);
+        assertTrue(why, why.contains("this project"));
+
+        item.getFuture().get();
+        assertNull(other.getCauseOfBlockage());
+    }
+
+    /**
+     * Verify scheduled tasks come due once in their hashed minute and get queued with a timer cause.
+     */
+    @Test
+    public void testCronSchedule() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("cron");
+        BatchTask nightly = new BatchTask("nightly", "echo nightly");
+        nightly.setCronSpec("H 2 * * *");
+        nightly.setQuietPeriod(600);
+        BatchTask manual = new BatchTask("manual", "echo manual");
+        p.addProperty(new BatchTaskProperty(nightly, manual));
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+
+        Set<BatchTask> due = new LinkedHashSet<BatchTask>();
+        Calendar c = new GregorianCalendar(2020, Calendar.JANUARY, 1, 0, 0);
+        for (int i = 0; i < 24 * 60; i++, c.add(Calendar.MINUTE, 1)) {
+            if (nightly.isDue(c)) {
+                assertEquals(2, c.get(Calendar.HOUR_OF_DAY));
+                assertTrue("due only once a day", due.isEmpty());
+                BatchTaskCron.collect(c, due);
+            }
+            assertFalse(manual.isDue(c));
+        }
+        assertEquals(Collections.singleton(nightly), due);
+
+        BatchTaskCron.schedule(due);
+        Queue.Item item = r.jenkins.getQueue().getItem(nightly);
+        assertNotNull(item);
+        assertTrue(item.getCauses().get(0) instanceof TimerTrigger.TimerTriggerCause);
+        r.jenkins.getQueue().cancel(nightly);
+    }
+
+    @Test
+    public void testInvalidCronSchedule() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("cron");
+        BatchTask task = new BatchTask("nightly", "echo nightly");
+        task.setCronSpec("every night");
+        p.addProperty(new BatchTaskProperty(task));
+
+        Calendar c = new GregorianCalendar(2020, Calendar.JANUARY, 1, 2, 0);
+        assertFalse(task.isDue(c));
+        assertFalse(task.isDue(c));
+        // fixing the schedule takes effect
+        task.setCronSpec("0 2 * * *");
+        assertTrue(task.isDue(c));
+
+        BatchTaskProperty.DescriptorImpl d = BatchTaskProperty.DESCRIPTOR;
+        assertEquals(FormValidation.Kind.ERROR, d.doCheckCronSpec("every night", "nightly", p).kind);
+        assertEquals(FormValidation.Kind.OK, d.doCheckCronSpec("H 2 * * *", "nightly", p).kind);
+        assertEquals(FormValidation.Kind.OK, d.doCheckCronSpec("", "nightly", p).kind);
+
+        // only those who can configure the job get the schedule checked
+        r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+        r.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ, Item.READ).everywhere().to("reader"));
+        try (ACLContext ctx = ACL.as(User.getById("reader", true))) {
+            assertEquals(FormValidation.Kind.OK, d.doCheckCronSpec("every night", "nightly", p).kind);
+        }
+    }
+
+    /**
+     * Verify higher priority tasks are moved ahead of the other buildable items.
+     */
+    @Test
+    public void testPrioritySort() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("priority");
+        BatchTask routine = new BatchTask("routine", "echo routine");
+        BatchTask urgent = new BatchTask("urgent", "echo urgent");
+        urgent.setPriority(10);
+        p.addProperty(new BatchTaskProperty(routine, urgent));
+
+        List<Queue.BuildableItem> items = new ArrayList<Queue.BuildableItem>();
+        items.add(new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), routine, Collections.<Action>emptyList())));
+        items.add(new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), urgent, Collections.<Action>emptyList())));
+        new BatchTaskQueueSorter().sortBuildableItems(items);
+        assertSame(urgent, items.get(0).task);
+        assertSame(routine, items.get(1).task);
+    }
+
+    /**
+     * Verify parameter values reach the script and are recorded with the run.
+     */
+    @Test
+    public void testParameters() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("parameters");
+        BatchTask task = new BatchTask("deploy", Functions.isWindows() ? "echo target=%TARGET%" : "echo target=$TARGET\n");
+        task.setParameterDefinitions(Collections.<ParameterDefinition>singletonList(
+                new StringParameterDefinition("TARGET", "staging", "")));
+        p.addProperty(new BatchTaskProperty(task));
+        assertTrue(task.isParameterized());
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+
+        task.schedule(new CauseAction(new UserCause()),
+                new ParametersAction(new StringParameterValue("TARGET", "prod-eu"))).getFuture().get();
+        BatchRun run = task.getLastRun();
+        assertEquals("prod-eu", ((StringParameterValue) run.getParameterValues().get(0)).getValue());
+        String log = Util.loadFile(run.getLogFile());
+        assertTrue(log, log.contains("target=prod-eu"));
+
+        // defaults when nothing is given
+        task.schedule(new CauseAction(new UserCause())).getFuture().get();
+        log = Util.loadFile(task.getLastRun().getLogFile());
+        assertTrue(log, log.contains("target=staging"));
+
+        // the definitions survive the configuration form
+        r.configRoundtrip(p);
+        BatchTask t2 = p.getProperty(BatchTaskProperty.class).getTask("deploy");
+        assertEquals("TARGET", t2.getParameterDefinitions().get(0).getName());
+    }
+
+    /**
+     * Verify the remote API exports the last runs and answers repeated requests with 304.
+     */
+    @Test
+    public void testRemoteApi() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("api");
+        BatchTask task = new BatchTask("test", "exit 1");
+        p.addProperty(new BatchTaskProperty(task));
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        assertEquals(Result.FAILURE, task.getLastFailedRun().getResult());
+        assertNull(task.getLastSuccessfulRun());
+
+        String url = p.getUrl() + "batchTasks/api/json?tree=tasks[name,lastRun[number,result]]";
+        JenkinsRule.WebClient wc = r.createWebClient();
+        WebResponse rsp = wc.goTo(url, "application/json").getWebResponse();
+        JSONObject t = JSONObject.fromObject(rsp.getContentAsString()).getJSONArray("tasks").getJSONObject(0);
+        assertEquals("test", t.getString("name"));
+        assertEquals("1-1", t.getJSONObject("lastRun").getString("number"));
+        assertEquals("FAILURE", t.getJSONObject("lastRun").getString("result"));
+        assertFalse(t.has("lastFailedRun"));
+
+        String etag = rsp.getResponseHeaderValue("ETag");
+        assertNotNull(etag);
+        WebRequest req = new WebRequest(new URL(r.getURL(), url));
+        req.setAdditionalHeader("If-None-Match", etag);
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        assertEquals(304, wc.getPage(req).getWebResponse().getStatusCode());
+
+        // a new run changes the tag
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        assertEquals(200, wc.getPage(req).getWebResponse().getStatusCode());
+    }
+
+    /**
+     * Deleting a task changes the tag of the remote API too.
+     */
+    @Test
+    public void testRemoteApiAfterDelete() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("api");
+        p.addProperty(new BatchTaskProperty(new BatchTask("keep", "echo keep"), new BatchTask("drop", "echo drop")));
+
+        String url = p.getUrl() + "batchTasks/api/json?tree=tasks[name]";
+        JenkinsRule.WebClient wc = r.createWebClient();
+        WebResponse rsp = wc.goTo(url, "application/json").getWebResponse();
+        assertEquals(2, JSONObject.fromObject(rsp.getContentAsString()).getJSONArray("tasks").size());
+        String etag = rsp.getResponseHeaderValue("ETag");
+        assertNotNull(etag);
+
+        TestHelper.assertPost(wc, p.getUrl() + "batchTasks/task/drop/doDelete", "text/html", 200);
+        assertNull(p.getProperty(BatchTaskProperty.class).getTask("drop"));
+
+        WebRequest req = new WebRequest(new URL(r.getURL(), url));
+        req.setAdditionalHeader("If-None-Match", etag);
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        rsp = wc.getPage(req).getWebResponse();
+        assertEquals(200, rsp.getStatusCode());
+        assertEquals(1, JSONObject.fromObject(rsp.getContentAsString()).getJSONArray("tasks").size());
+    }
+
+    /**
+     * The icon shows a task is running, even after the project is configured meanwhile.
+     */
+    @Test
+    public void testRunningIcon() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        FreeStyleProject p = r.createFreeStyleProject("icon");
+        BatchTask task = new BatchTask("test", "touch ../started; while [ ! -f ../release ]; do sleep 0.1; done\n");
+        p.addProperty(new BatchTaskProperty(task));
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        File dir = new File(p.getSomeWorkspace().getParent().getRemote());
+        assertEquals("gear2.gif", p.getAction(BatchTaskAction.class).getIconFileName());
+
+        Future<?> f = r.jenkins.getQueue().schedule(task, 0).getFuture();
+        while (!new File(dir, "started").exists())
+            Thread.sleep(100);
+        assertTrue(p.getAction(BatchTaskAction.class).getIconFileName().contains("anime"));
+        r.configRoundtrip(p);
+        assertTrue(p.getAction(BatchTaskAction.class).getIconFileName().contains("anime"));
+
+        assertTrue(new File(dir, "release").createNewFile());
+        f.get();
+        assertEquals("gear2.gif", p.getAction(BatchTaskAction.class).getIconFileName());
+    }
+
+    /**
+     * Verify the overview summaries agree with what each task reports.
+     */
+    @Test
+    public void testSummaries() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("summaries");
+        BatchTask ok = new BatchTask("ok", "echo hello");
+        BatchTask ko = new BatchTask("ko", "exit 1");
+        BatchTask idle = new BatchTask("idle", "echo idle");
+        BatchTaskProperty bp = new BatchTaskProperty(ok, ko, idle);
+        p.addProperty(bp);
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        r.jenkins.getQueue().schedule(ok, 0).getFuture().get();
+        r.jenkins.getQueue().schedule(ko, 0).getFuture().get();
+
+        List<BatchTaskAction.Summary> summaries = new BatchTaskAction(p, bp).getSummaries();
+        assertEquals(3, summaries.size());
+        for (BatchTaskAction.Summary s : summaries) {
+            BatchTask t = s.getTask();
+            assertEquals(t.getLastRun(), s.getLastRun());
+            assertEquals(t.getLastSuccessfulRun(), s.getLastSuccessfulRun());
+            assertEquals(t.getLastFailedRun(), s.getLastFailedRun());
+            assertEquals(t.getIconColor(), s.getIconColor());
+        }
+        assertTrue(summaries.get(0).getDuration() >= 0);
+        assertEquals(-1, summaries.get(2).getDuration());
+        r.createWebClient().goTo(p.getUrl() + "batchTasks/");
+    }
+
+    /**
+     * Verify the history export lists finished runs and honours the since filter.
+     */
+    @Test
+    public void testExport() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("export");
+        BatchTask task = new BatchTask("test", "echo hello");
+        p.addProperty(new BatchTaskProperty(task));
+        r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        r.jenkins.getQueue().schedule(task, 0).getFuture().get();
+        BatchRun run = task.getLastRun();
+
+        JenkinsRule.WebClient wc = r.createWebClient();
+        String[] lines = wc.goTo(p.getUrl() + "batchTasks/export", "text/csv")
+                .getWebResponse().getContentAsString().trim().split("\\r?\\n");
+        assertEquals(2, lines.length);
+        assertEquals("task,build,id,start,duration,result,node,queueWait", lines[0]);
+        assertTrue(lines[1], lines[1].startsWith("test,1,1,"));
+        assertTrue(lines[1], lines[1].contains(",SUCCESS,(built-in),"));
+
+        long later = run.getTimeInMillis() + 1;
+        lines = wc.goTo(p.getUrl() + "batchTasks/export?since=" + later, "text/csv")
+                .getWebResponse().getContentAsString().trim().split("\\r?\\n");
+        assertEquals(1, lines.length);
+    }
 }
@@ -0,0 +1,88 @@
+package hudson.plugins.batch_task;
+
+import hudson.Functions;
+import hudson.Util;
+import hudson.FilePath;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.slaves.DumbSlave;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class DurableExecutionTest {
+
+    @Rule
+    public JenkinsSessionRule sessions = new JenkinsSessionRule();
+
+    @Test
+    public void testSurvivesRestart() throws Throwable {
+        Assume.assumeFalse(Functions.isWindows());
+        sessions.then(r -> {
+            FreeStyleProject p = r.createFreeStyleProject("p");
+            BatchTask task = new BatchTask("test", "echo before; touch ../started; sleep 10; echo after\n");
+            task.setDurable(true);
+            p.addProperty(new BatchTaskProperty(task));
+            r.buildAndAssertSuccess(p);
+
+            r.jenkins.getQueue().schedule(task, 0);
+            File started = new File(p.getSomeWorkspace().getParent().getRemote(), "started");
+            while (!started.exists())
+                Thread.sleep(100);
+            BatchRun run = task.getLastRun();
+            assertTrue(run.isRunning());
+            assertTrue(run.isDurable());
+        });
+        sessions.then(r -> {
+            FreeStyleProject p = r.jenkins.getItemByFullName("p", FreeStyleProject.class);
+            BatchRun run = p.getProperty(BatchTaskProperty.class).getTask("test").getLastRun();
+            while (run.isRunning())
+                Thread.sleep(100);
+            assertEquals(Result.SUCCESS, run.getResult());
+            assertFalse(run.isDurable());
+            String log = Util.loadFile(run.getLogFile());
+            assertTrue(log, log.contains("before"));
+            assertTrue(log, log.contains("after"));
+        });
+    }
+
+    /**
+     * The script keeps going while the agent is disconnected, and its outcome is collected once it's back.
+     */
+    @Test
+    public void testSurvivesDisconnect() throws Throwable {
+        Assume.assumeFalse(Functions.isWindows());
+        sessions.then(r -> {
+            DumbSlave agent = r.createOnlineSlave();
+            FreeStyleProject p = r.createFreeStyleProject("p");
+            p.setAssignedNode(agent);
+            BatchTask task = new BatchTask("test", "echo before; touch ../started; sleep 10; echo after\n");
+            task.setDurable(true);
+            p.addProperty(new BatchTaskProperty(task));
+            r.buildAndAssertSuccess(p);
+            FilePath ws = p.getSomeWorkspace();
+
+            r.jenkins.getQueue().schedule(task, 0);
+            File started = new File(ws.getParent().getRemote(), "started");
+            while (!started.exists())
+                Thread.sleep(100);
+            BatchRun run = task.getLastRun();
+            agent.toComputer().disconnect(null).get();
+            Thread.sleep(3 * DurableExecution.POLL_INTERVAL);
+            assertTrue(run.isRunning());
+            agent.toComputer().connect(false).get();
+            r.waitOnline(agent);
+
+            while (run.isRunning())
+                Thread.sleep(100);
+            assertEquals(Result.SUCCESS, run.getResult());
+            String log = Util.loadFile(run.getLogFile());
+            assertTrue(log, log.contains("after"));
+        });
+    }
+}
@@ -40,4 +40,29 @@ public class RestartTest {
         q.load(); // make sure it's the load operation that resurrected the task correctly.
         assertTrue(q.contains(t));
     }
+
+    @Test
+    public void testRestartDropsMissingTasks() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.scheduleBuild2(0).get();
+        r.jenkins.setNumExecutors(0);
+
+        BatchTask kept = new BatchTask("kept", "echo hello");
+        BatchTask removed = new BatchTask("removed", "echo hello");
+        BatchTaskProperty bp = new BatchTaskProperty(kept, removed);
+        p.addProperty(bp);
+
+        Queue q = r.jenkins.getQueue();
+        q.schedule(kept, 9999);
+        q.schedule(removed, 9999);
+        q.save();
+        q.clear();
+        bp.removeTask(removed);
+
+        // the entry of the removed task is dropped rather than failing the load
+        q.load();
+        assertTrue(q.contains(kept));
+        assertFalse(q.contains(removed));
+        assertEquals(1, q.getItems().length);
+    }
 }